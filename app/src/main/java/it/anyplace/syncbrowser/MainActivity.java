@@ -17,15 +17,15 @@ import android.Manifest;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.ActivityNotFoundException;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
-import android.os.Build;
 import android.os.Environment;
-import android.provider.MediaStore;
+import android.os.IBinder;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -42,9 +42,11 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.MimeTypeMap;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -56,6 +58,7 @@ import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
 import com.google.common.eventbus.Subscribe;
 import com.google.gson.Gson;
@@ -75,17 +78,13 @@ import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
 
-import it.anyplace.sync.bep.BlockPuller;
-import it.anyplace.sync.bep.BlockPusher;
 import it.anyplace.sync.bep.FolderBrowser;
 import it.anyplace.sync.bep.IndexBrowser;
-import it.anyplace.sync.bep.IndexFinder;
 import it.anyplace.sync.bep.IndexHandler;
 import it.anyplace.sync.client.SyncthingClient;
 import it.anyplace.sync.core.beans.DeviceInfo;
@@ -93,19 +92,35 @@ import it.anyplace.sync.core.beans.DeviceStats;
 import it.anyplace.sync.core.beans.FileInfo;
 import it.anyplace.sync.core.beans.FolderInfo;
 import it.anyplace.sync.core.beans.FolderStats;
-import it.anyplace.sync.core.beans.IndexInfo;
 import it.anyplace.sync.core.configuration.ConfigurationService;
 import it.anyplace.sync.core.security.KeystoreHandler;
 import it.anyplace.sync.core.utils.FileInfoOrdering;
 import it.anyplace.sync.core.utils.PathUtils;
+import it.anyplace.syncbrowser.browser.FolderListUpdater;
+import it.anyplace.syncbrowser.browser.IndexProgressReporter;
+import it.anyplace.syncbrowser.browser.IndexRefreshScheduler;
+import it.anyplace.syncbrowser.browser.ListingPrefetcher;
+import it.anyplace.syncbrowser.browser.ListingSnapshotCache;
+import it.anyplace.syncbrowser.browser.ThumbnailLoader;
 import it.anyplace.syncbrowser.filepicker.MIVFilePickerActivity;
+import it.anyplace.syncbrowser.search.FileEntry;
+import it.anyplace.syncbrowser.search.SearchIndex;
+import it.anyplace.syncbrowser.search.SearchIndexLoader;
+import it.anyplace.syncbrowser.search.SearchScheduler;
+import it.anyplace.syncbrowser.service.SyncthingService;
+import it.anyplace.syncbrowser.service.TransferTask;
+import it.anyplace.syncbrowser.transfer.CachedFileProvider;
+import it.anyplace.syncbrowser.transfer.ContentMetadataResolver;
+import it.anyplace.syncbrowser.transfer.DownloadJournal;
+import it.anyplace.syncbrowser.transfer.FileCache;
+import it.anyplace.syncbrowser.transfer.LocalContentIndex;
+import it.anyplace.syncbrowser.utils.StartupTimer;
 
 import static com.google.common.base.Objects.equal;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Strings.nullToEmpty;
 import static it.anyplace.syncbrowser.utils.ViewUtils.listViews;
 import static org.apache.commons.io.FileUtils.getFile;
-import static org.apache.commons.lang3.StringUtils.capitalize;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
 //TODO move interface code to fragment
@@ -113,9 +128,93 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
 
     private ConfigurationService configuration;
     private SyncthingClient syncthingClient;
+    private SyncthingService syncthingService;
     private Exception statupError;
 
-    private void closeClient() {
+    private final ServiceConnection syncthingServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder binder) {
+            Log.i("MainActivity", "syncthing service connected");
+            syncthingService = ((SyncthingService.LocalBinder) binder).getService();
+            downloadJournal = syncthingService.getDownloadJournal();
+            localContentIndex = syncthingService.getLocalContentIndex();
+            fileCache = syncthingService.getFileCache();
+            syncthingService.setTransferListener(transferListener);
+            for (TransferTask transferTask : syncthingService.getTransfers()) {
+                transferListener.onTransferUpdated(transferTask);
+            }
+            startClient();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            Log.w("MainActivity", "syncthing service disconnected");
+        }
+    };
+
+    private final IndexProgressReporter indexProgressReporter = new IndexProgressReporter(new IndexProgressReporter.Listener() {
+        @Override
+        public void onProgress(IndexProgressReporter.IndexProgress progress) {
+            if (syncthingClient == null) {
+                return;
+            }
+            String label = syncthingClient.getIndexHandler().getFolderInfo(progress.getFolder()).getLabel();
+            ((TextView) findViewById(R.id.main_index_progress_bar_label)).setText("index update, folder "
+                    + label + " " + ((int) (progress.getCompleted() * 100)) + "% synchronized, "
+                    + ((long) progress.getRecordsPerSecond()) + " records/s");
+            if (indexBrowser == null) {
+                Log.i("handleIndexRecordEvent", "trigger folder list update from index record acquired");
+                updateFolderListView();
+            }
+        }
+    });
+
+    private final Object indexEventSubscriber = new Object() {
+
+        @Subscribe
+        public void handleIndexRecordAquiredEvent(IndexHandler.IndexRecordAquiredEvent event) {
+            folderListUpdater.submit(event.getFolder(), event.getNewRecords());
+            ListingPrefetcher listingPrefetcher = MainActivity.this.listingPrefetcher;
+            if (listingPrefetcher != null) {
+                listingPrefetcher.invalidate(event.getFolder(), event.getNewRecords());
+            }
+            indexRefreshScheduler.onIndexRecords(event.getFolder());
+            searchIndex.updateLater(event.getNewRecords());
+            indexProgressReporter.onRecords(event.getFolder(), event.getIndexInfo().getCompleted(), event.getNewRecords().size());
+        }
+
+        @Subscribe
+        public void handleRemoteIndexAquiredEvent(IndexHandler.FullIndexAquiredEvent event) {
+
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Log.i("handleIndexAquiredEvent", "trigger folder list update from index acquired");
+                    findViewById(R.id.main_index_progress_bar).setVisibility(View.GONE);
+                    updateFolderListView();
+                }
+            });
+        }
+    };
+
+    /**
+     * release the client and everything built on it; the client itself is owned (and closed) by the service
+     */
+    private void releaseClient() {
+        folderListUpdater.unbind();
+        if (listingPrefetcher != null) {
+            listingPrefetcher.close();
+            listingPrefetcher = null;
+        }
+        if (searchIndexLoader != null) {
+            searchIndexLoader.close();
+            searchIndexLoader = null;
+        }
+        if (thumbnailLoader != null) {
+            thumbnailLoader.close();
+            thumbnailLoader = null;
+        }
+        searchIndex.clear();
         if (indexBrowser != null) {
             indexBrowser.close();
             indexBrowser = null;
@@ -125,68 +224,70 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
             folderBrowser = null;
         }
         if (syncthingClient != null) {
-            syncthingClient.close();
+            syncthingClient.getIndexHandler().getEventBus().unregister(indexEventSubscriber);
             syncthingClient = null;
         }
     }
 
     private void initClient() {
-        closeClient();
+        releaseClient();
         try {
-            configuration = ConfigurationService.newLoader()
-                    .setCache(new File(getExternalCacheDir(), "cache"))
-                    .setDatabase(new File(getExternalFilesDir(null), "database"))
-                    .loadFrom(new File(getExternalFilesDir(null), "config.properties"));
-            configuration.edit().setDeviceName(getDeviceName());
-            FileUtils.cleanDirectory(configuration.getTemp());
-            KeystoreHandler keystoreHandler = KeystoreHandler.newLoader().loadAndStore(configuration);
-            configuration.edit().persistLater();
-            Log.i("initClient", "loaded configuration = " + configuration.newWriter().dumpToString());
-            Log.i("initClient", "storage space = " + configuration.getStorageInfo().dumpAvailableSpace());
-            syncthingClient = new SyncthingClient(configuration);
-            syncthingClient.getIndexHandler().getEventBus().register(new Object() {
-
-                @Subscribe
-                public void handleIndexRecordAquiredEvent(IndexHandler.IndexRecordAquiredEvent event) {
-                    final String label = syncthingClient.getIndexHandler().getFolderInfo(event.getFolder()).getLabel();
-                    final IndexInfo indexInfo = event.getIndexInfo();
-                    final long count = event.getNewRecords().size();
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            Log.i("handleIndexRecordEvent", "trigger folder list update from index record acquired");
-                            ((TextView) findViewById(R.id.main_index_progress_bar_label)).setText("index update, folder "
-                                    + label + " " + ((int) (indexInfo.getCompleted() * 100)) + "% synchronized");
-                            if(indexBrowser==null  || event.getAffectedPaths().contains(indexBrowser.getCurrentPath())) {
-                                updateFolderListView();
-                            }
-                        }
-                    });
-                }
-
-                @Subscribe
-                public void handleRemoteIndexAquiredEvent(IndexHandler.FullIndexAquiredEvent event) {
-
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            Log.i("handleIndexAquiredEvent", "trigger folder list update from index acquired");
-                            findViewById(R.id.main_index_progress_bar).setVisibility(View.GONE);
-                            updateFolderListView();
-                        }
-                    });
-                }
-            });
+            SyncthingClient client = syncthingService.awaitClient();
+            configuration = syncthingService.getConfiguration();
+            client.getIndexHandler().getEventBus().register(indexEventSubscriber);
+            syncthingClient = client;
             //TODO listen for device events, update device list
             folderBrowser = syncthingClient.getIndexHandler().newFolderBrowser();
+            listingPrefetcher = new ListingPrefetcher(syncthingClient.getIndexHandler());
+            searchIndexLoader = new SearchIndexLoader(syncthingClient.getIndexHandler(), searchIndex);
+            thumbnailLoader = new ThumbnailLoader(MainActivity.this, syncthingClient, fileCache, localContentIndex);
             statupError = null;
         } catch (Exception ex) {
             Log.e("Main", "error", ex);
             statupError = ex;
-            closeClient();
+            releaseClient();
         }
     }
 
+    private void startClient() {
+        new AsyncTask<Void, Void, Void>() {
+
+
+            @Override
+            protected void onPreExecute() {
+                updateMainProgressBar(true,"loading config, starting syncthing client");
+            }
+
+            @Override
+            protected Void doInBackground(Void... voidd) {
+                initClient();
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void voidd) {
+                if (isDestroyed()) {
+                    return;
+                }
+                updateMainProgressBar(false,null);
+                if (syncthingClient == null) {
+                    Toast.makeText(MainActivity.this, "error starting syncthing client: " + statupError, Toast.LENGTH_LONG).show();
+                    MainActivity.this.finish();
+                } else {
+                    StartupTimer.phase("client ready");
+                    List<String> folders = Lists.newArrayList();
+                    for (Pair<FolderInfo, FolderStats> folderInfoAndStats : folderBrowser.getFolderInfoAndStatsList()) {
+                        folders.add(folderInfoAndStats.getLeft().getFolder());
+                    }
+                    indexRefreshScheduler.addFolders(folders);
+                    indexRefreshScheduler.start(); // triggers index update right away, if due
+                    restoreBrowserFolderFromPref();
+                    initDeviceList();
+                    offerInterruptedDownloadRestart();
+                }
+            }
+        }.execute();
+    }
 
     @Override
     public void onRequestPermissionsResult(int requestCode, String permissions[], int[] grantResults) {
@@ -201,6 +302,7 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         Log.i("onCreate", "BEGIN");
+        StartupTimer.phase("activity create");
         super.onCreate(savedInstanceState);
 
 
@@ -222,9 +324,49 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
             Log.i("MainActivity", "check permissions END");
         }
 
+        // start client (discovery, connections) while the ui is inflated
+        Intent serviceIntent = new Intent(this, SyncthingService.class);
+        startService(serviceIntent);
+        bindService(serviceIntent, syncthingServiceConnection, BIND_AUTO_CREATE);
+
         setContentView(R.layout.main_container);
+        StartupTimer.phase("ui inflated");
+
+        listingSnapshotCache = new ListingSnapshotCache(new File(getExternalCacheDir(), "listings"));
+        indexRefreshScheduler = new IndexRefreshScheduler(this, new IndexRefreshScheduler.Listener() {
+            @Override
+            public void onRefreshDue() {
+                if (!indexUpdateInProgress) {
+                    updateIndexFromRemote();
+                }
+            }
+        });
+        showCachedListing();
+        contentMetadataResolver = new ContentMetadataResolver(getContentResolver());
 
         ((ListView) findViewById(R.id.main_folder_and_files_list_view)).setEmptyView(findViewById(R.id.main_list_view_empty_element));
+        ((ListView) findViewById(R.id.main_folder_and_files_list_view)).setRecyclerListener(new AbsListView.RecyclerListener() {
+            @Override
+            public void onMovedToScrapHeap(View view) {
+                ImageView thumbnailView = (ImageView) view.findViewById(R.id.file_thumbnail);
+                if (thumbnailView != null && thumbnailLoader != null) {
+                    thumbnailLoader.cancel(thumbnailView);
+                }
+            }
+        });
+        ((ListView) findViewById(R.id.main_folder_and_files_list_view)).setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView absListView, int scrollState) {
+                if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE) {
+                    prefetchVisibleDirectories();
+                }
+            }
+
+            @Override
+            public void onScroll(AbsListView absListView, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+
+            }
+        });
 
         checkPermissions();
 
@@ -323,27 +465,15 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
             @Override
             public void afterTextChanged(Editable editable) {
                 final String text=editable.toString();
-                if(indexFinder!=null && !StringUtils.isBlank(text) && text.trim().length()>2) {
-                    new AsyncTask<Void,Void,Void>(){
-
-                        @Override
-                        protected Void doInBackground(Void... voids) {
-                            try {
-                                Thread.sleep(750);
-                            } catch (InterruptedException e) {
-                            }
-                            return null;
-                        }
-                        @Override
-                        protected void onPostExecute(Void aVoid) {
-                            String newText=((EditText) findViewById(R.id.main_search_bar_input_field)).getText().toString();
-                            if(equal(text,newText)) {
-                                findViewById(R.id.main_search_progress_bar).setVisibility(View.VISIBLE);
-                                indexFinder.submitSearch(text);
-                            }
-                        }
-                    }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-
+                if(searchModeOn) {
+                    if (StringUtils.isBlank(text)) {
+                        searchScheduler.cancel();
+                        findViewById(R.id.main_search_progress_bar).setVisibility(View.GONE);
+                        searchResult = null;
+                        updateSearchResultListView();
+                    } else {
+                        submitSearch(text);
+                    }
                 }
             }
         });
@@ -366,38 +496,6 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
         });
 
 
-        new AsyncTask<Void, Void, Void>() {
-
-
-            @Override
-            protected void onPreExecute() {
-                updateMainProgressBar(true,"loading config, starting syncthing client");
-            }
-
-            @Override
-            protected Void doInBackground(Void... voidd) {
-                initClient();
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void voidd) {
-                updateMainProgressBar(false,null);
-                if (syncthingClient == null) {
-                    Toast.makeText(MainActivity.this, "error starting syncthing client: " + statupError, Toast.LENGTH_LONG).show();
-                    MainActivity.this.finish();
-                } else {
-                    restoreBrowserFolderFromPref();
-                    Date lastUpdate = getLastIndexUpdateFromPref();
-                    if (lastUpdate == null || new Date().getTime() - lastUpdate.getTime() > 10 * 60 * 1000) { //trigger update if last was more than 10mins ago
-                        Log.d("onCreate", "trigger index update, last was " + lastUpdate);
-                        updateIndexFromRemote();
-                    }
-                    initDeviceList();
-                }
-            }
-        }.execute();
-
         Log.i("onCreate", "app ready, scanning intent");
         Intent intent = getIntent();
         if (equal(Intent.ACTION_SEND, intent.getAction())) {
@@ -440,6 +538,7 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
     private void cleanCacheAndIndex() {
         if (syncthingClient != null) {
             syncthingClient.clearCacheAndIndex();
+            listingSnapshotCache.clear();
             recreate();
         }
     }
@@ -496,44 +595,69 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
         }
     }
 
-    private IndexFinder indexFinder;
-    private IndexFinder.SearchCompletedEvent searchCompletedEvent;
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final SearchScheduler searchScheduler = new SearchScheduler(searchIndex, new SearchScheduler.Listener() {
+        @Override
+        public void onSearchCompleted(final SearchIndex.SearchResult result) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    String term = ((EditText) findViewById(R.id.main_search_bar_input_field)).getText().toString();
+                    if (searchModeOn && equal(result.getQuery(), term)) {
+                        searchResult = result;
+                        updateSearchResultListView();
+                        findViewById(R.id.main_search_progress_bar).setVisibility(View.GONE);
+                    }
+                }
+            });
+        }
+    });
+    private SearchIndexLoader searchIndexLoader;
+    private SearchIndex.SearchResult searchResult;
 
     private void enterSearchMode(){
         Log.i("Main","enterSearchMode");
         searchModeOn=true;
-        searchCompletedEvent=null;
-        indexFinder=syncthingClient.getIndexHandler().newIndexFinderBuilder().build();
-        indexFinder.setOrdering(fileInfoOrdering);
-        indexFinder.getEventBus().register(new Object(){
-            @Subscribe
-            public void handleSearchCompletedEvent(IndexFinder.SearchCompletedEvent event){
-                runOnUiThread(new Runnable(){
-                    public void run(){
-                        String term = ((EditText) findViewById(R.id.main_search_bar_input_field)).getText().toString();
-                        if(equal(event.getQuery(),term)){
-                            searchCompletedEvent=event;
-                            updateSearchResultListView();
-                            findViewById(R.id.main_search_progress_bar).setVisibility(View.GONE);
-                        }
-                    }
-                });
-            }
-        });
+        searchResult=null;
+        List<String> folders = Lists.newArrayList();
+        for (Pair<FolderInfo, FolderStats> folderInfoAndStats : folderBrowser.getFolderInfoAndStatsList()) {
+            folders.add(folderInfoAndStats.getLeft().getFolder());
+        }
+        searchIndexLoader.startLoading(folders);
 
         ListView listView = (ListView) findViewById(R.id.main_search_results_list_view);
         listView.setEmptyView(findViewById(R.id.main_search_results_empty_element));
-        ArrayAdapter adapter = createFileInfoArrayAdapter();
-        listView.setAdapter(adapter);
+        listView.setAdapter(createFileEntryArrayAdapter(Collections.<FileEntry>emptyList()));
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-                FileInfo fileInfo = (FileInfo) listView.getItemAtPosition(position);
-                if(fileInfo.isDirectory()){
+                final FileEntry fileEntry = (FileEntry) listView.getItemAtPosition(position);
+                if(fileEntry.isDirectory()){
                     exitSearchMode();
-                    showFolderListView(fileInfo.getFolder(),fileInfo.getPath());
-                }else if(fileInfo.isFile()){
-                    pullFile(fileInfo);
+                    showFolderListView(fileEntry.getFolder(),fileEntry.getPath());
+                }else{
+                    final SyncthingClient client = syncthingClient;
+                    if (client == null) {
+                        return;
+                    }
+                    new AsyncTask<Void, Void, FileInfo>() {
+                        @Override
+                        protected FileInfo doInBackground(Void... voids) {
+                            return client.getIndexHandler().getFileInfoByPath(fileEntry.getFolder(), fileEntry.getPath());
+                        }
+
+                        @Override
+                        protected void onPostExecute(FileInfo fileInfo) {
+                            if (isDestroyed() || syncthingService == null) {
+                                return;
+                            }
+                            if (fileInfo == null || !fileInfo.isFile() || fileInfo.isDeleted()) {
+                                Toast.makeText(MainActivity.this, "file not found: " + fileEntry.getPath(), Toast.LENGTH_SHORT).show();
+                            } else {
+                                pullFile(fileInfo);
+                            }
+                        }
+                    }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 }
             }
         });
@@ -550,44 +674,56 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
         ((TextView)findViewById(R.id.main_search_results_empty_element)).setVisibility(View.GONE);
         listView.setAdapter(null);
         updateButtonsVisibility();
-        indexFinder.close();
-        indexFinder=null;
-        searchCompletedEvent=null;
+        searchScheduler.reset();
+        findViewById(R.id.main_search_progress_bar).setVisibility(View.GONE);
+        searchResult=null;
+    }
+
+    private void submitSearch(String text) {
+        findViewById(R.id.main_search_progress_bar).setVisibility(View.VISIBLE);
+        searchScheduler.submitSearch(text, fileInfoOrdering);
     }
 
     private void updateSearchResultListView(){
         ListView listView = (ListView) findViewById(R.id.main_search_results_list_view);
-        ArrayAdapter<FileInfo> arrayAdapter=((ArrayAdapter)listView.getAdapter());
-        arrayAdapter.clear();
-        if(searchCompletedEvent==null || searchCompletedEvent.hasZeroResults()){
+        SearchIndex.SearchResult result = searchResult;
+        if(result==null || result.getResultCount()==0){
             Log.i("Main", "updateSearchResultListView, no result");
-            ((TextView)findViewById(R.id.main_search_results_empty_element)).setText(R.string.no_search_result_message);
-        }else if(searchCompletedEvent.hasTooManyResults()) {
-            Log.i("Main", "updateSearchResultListView, too many results");
-            ((TextView)findViewById(R.id.main_search_results_empty_element)).setText(R.string.too_many_search_results_message);
+            ((TextView)findViewById(R.id.main_search_results_empty_element)).setText(searchIndex.isComplete()
+                    ? R.string.no_search_result_message : R.string.search_index_loading_message);
+            listView.setAdapter(createFileEntryArrayAdapter(Collections.<FileEntry>emptyList()));
         }else{
-            List<FileInfo> list = searchCompletedEvent.getResultList();
-            Log.i("Main", "updateSearchResultListView, result count = " + list.size());
-            arrayAdapter.addAll(list);
+            Log.i("Main", "updateSearchResultListView, result count = " + result.getResultCount());
+            listView.setAdapter(createFileEntryArrayAdapter(result.getResults()));
         }
-        arrayAdapter.notifyDataSetChanged();
         listView.setSelection(0);
     }
 
     private List<Uri> filesToUpload;
+    private ContentMetadataResolver contentMetadataResolver;
+    private DownloadJournal downloadJournal;
+    private LocalContentIndex localContentIndex;
+    private FileCache fileCache;
+    private ThumbnailLoader thumbnailLoader;
 
     private void handleSend(List<Uri> list) {
         Log.i("Main", "handle send of files = " + list);
         isHandlingUploadIntent = true;
         filesToUpload = list;
         updateButtonsVisibility();
-        ((TextView) findViewById(R.id.file_upload_intent_footer_label)).setText(Joiner.on(", ").join(Iterables.transform(list, new Function<Uri, String>() {
-
+        ((TextView) findViewById(R.id.file_upload_intent_footer_label)).setText(list.size() + " files");
+        contentMetadataResolver.resolveAsync(list, new ContentMetadataResolver.Callback() {
             @Override
-            public String apply(Uri input) {
-                return getContentFileName(input);
+            public void onResolved(List<ContentMetadataResolver.ContentMetadata> metadataList) {
+                ((TextView) findViewById(R.id.file_upload_intent_footer_label)).setText(Joiner.on(", ").join(Iterables.transform(metadataList, new Function<ContentMetadataResolver.ContentMetadata, String>() {
+
+                    @Override
+                    public String apply(ContentMetadataResolver.ContentMetadata input) {
+                        return input.getFileName();
+                    }
+                })));
             }
-        })));
+        });
         ((TextView) findViewById(R.id.file_upload_intent_footer_confirm_button)).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
@@ -612,112 +748,38 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
         });
     }
 
-    private String getContentFileName(Uri contentUri) {
-        String fileName = new File(contentUri.getLastPathSegment()).getName();
-        if (equal(contentUri.getScheme(), "content")) {
-            try (Cursor cursor = MainActivity.this.getContentResolver().query(contentUri, new String[]{MediaStore.Images.Media.DATA}, null, null, null)) {
-                int column_index = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-                cursor.moveToFirst();
-                String path = cursor.getString(column_index);
-                Log.d("Main", "recovered 'content' uri real path = " + path);
-                fileName = new File(Uri.parse(path).getLastPathSegment()).getName();
-            }catch(Exception ex) {
-                Log.w("getContentFileName", "unable to get content _data from uri = " + contentUri, ex);
-            }
-        }
-        return fileName;
-    }
-
     private void doUpload(final String folder, final String dir, final List<Uri> filesToUpload) {
         if (!filesToUpload.isEmpty()) {
-            new AsyncTask<Void, BlockPusher.FileUploadObserver, Exception>() {
-                private ProgressDialog progressDialog;
-                private Thread thread;
-                private boolean cancelled = false;
-                private Uri fileToUpload = filesToUpload.iterator().next();
-                private List<Uri> nextFilesToUpload = filesToUpload.subList(1, filesToUpload.size());
-                private String fileName = getContentFileName(fileToUpload);
-                private String path = PathUtils.buildPath(dir, fileName);
-
-                @Override
-                protected void onPreExecute() {
-                    Log.i("doUpload", "upload of file " + fileName + " to folder " + folder + ":" + dir);
-                    progressDialog = new ProgressDialog(MainActivity.this);
-                    progressDialog.setMessage("uploading file " + fileName);
-                    progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-                    progressDialog.setCancelable(true);
-                    progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
-                        @Override
-                        public void onCancel(DialogInterface dialogInterface) {
-                            cancelled = true;
-                            if (thread != null) {
-                                thread.interrupt();
-                            }
-                            Toast.makeText(MainActivity.this, "upload aborted by user", Toast.LENGTH_SHORT).show();
-                        }
-                    });
-                    progressDialog.setIndeterminate(true);
-                    progressDialog.show();
-                }
-
+            contentMetadataResolver.resolveAsync(filesToUpload, new ContentMetadataResolver.Callback() {
                 @Override
-                protected Exception doInBackground(Void... voidd) {
-                    try {
-                        try (BlockPusher.FileUploadObserver observer = syncthingClient.pushFile(getContentResolver().openInputStream(fileToUpload), folder, path)) {
-                            Log.i("doUpload", "pushing file " + fileName + " to folder " + folder + ":" + dir);
-                            publishProgress(observer);
-                            while (!observer.isCompleted() && !cancelled) {
-                                observer.waitForProgressUpdate();
-                                Log.i("Main", "upload progress = " + observer.getProgressMessage());
-                                publishProgress(observer);
-                            }
-                            if (cancelled) {
-                                return null;
-                            }
-                            Log.i("Main", "uploaded file = " + path);
-                            return null;
-                        }
-                    } catch (Exception ex) {
-                        if (cancelled) {
-                            return null;
-                        }
-                        Log.e("Main", "file upload exception", ex);
-                        return ex;
-                    }
-                }
-
-                @Override
-                protected void onProgressUpdate(BlockPusher.FileUploadObserver... observer) {
-                    if (observer[0].getProgress() > 0) {
-                        progressDialog.setIndeterminate(false);
-                        progressDialog.setMax((int) observer[0].getDataSource().getSize());
-                        progressDialog.setProgress((int) (observer[0].getProgress() * observer[0].getDataSource().getSize()));
+                public void onResolved(List<ContentMetadataResolver.ContentMetadata> metadataList) {
+                    if (isDestroyed() || syncthingService == null) {
+                        return;
                     }
+                    startUpload(folder, dir, metadataList);
                 }
+            });
+        }
+    }
 
-                @Override
-                protected void onPostExecute(Exception res) {
-                    progressDialog.dismiss();
-                    if (cancelled) {
-                        // do nothing
-                    } else if (res != null) {
-                        Toast.makeText(MainActivity.this, "error uploading file: " + res, Toast.LENGTH_LONG).show();
-                    } else {
-                        Log.i("doUpload", "uploaded file " + fileName + " to folder " + folder + ":" + dir);
-                        Toast.makeText(MainActivity.this, "uploaded file: " + fileName, Toast.LENGTH_SHORT).show();
-                        updateFolderListView();
-                        if (!nextFilesToUpload.isEmpty()) {
-                            doUpload(folder, dir, nextFilesToUpload);
-                        }
-                    }
-                }
-            }.execute();
+    private void startUpload(final String folder, final String dir, final List<ContentMetadataResolver.ContentMetadata> filesToUpload) {
+        if (!filesToUpload.isEmpty()) {
+            Log.i("doUpload", "upload of " + filesToUpload.size() + " files to folder " + folder + ":" + dir);
+            try {
+                transferListener.onTransferUpdated(syncthingService.startUpload(folder, dir, filesToUpload));
+            } catch (Exception ex) {
+                Log.e("doUpload", "error starting upload", ex);
+                Toast.makeText(MainActivity.this, "error uploading files: " + ex, Toast.LENGTH_LONG).show();
+            }
         }
     }
 
     private FolderBrowser folderBrowser;
     private IndexBrowser indexBrowser;
-    private boolean isBrowsingFolder = false, isHandlingUploadIntent = false, indexUpdateInProgress = false, searchModeOn=false;
+    private final FolderListUpdater folderListUpdater = new FolderListUpdater();
+    private ListingSnapshotCache listingSnapshotCache;
+    private ListingPrefetcher listingPrefetcher;
+    private boolean isBrowsingFolder = false, isHandlingUploadIntent = false, indexUpdateInProgress = false, indexUpdatePending = false, searchModeOn=false;
 
     private final static String CURRENT_FOLDER_PREF = "CURRENT_FOLDER";
 
@@ -732,17 +794,33 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
         }
     }
 
-    private void restoreBrowserFolderFromPref() {
-        Log.d("restoreBrowserFolder...", "restoreBrowserFolderFromPref");
+    /**
+     * return saved folder and path, or null if the folder list was displayed
+     */
+    private @Nullable List<String> getCurrentFolderFromPref() {
         String value = getPreferences(MODE_PRIVATE).getString(CURRENT_FOLDER_PREF, null);
         if (isBlank(value)) {
+            return null;
+        }
+        try {
+            List<String> list = new Gson().fromJson(value, new TypeToken<List<String>>() {
+            }.getType());
+            checkArgument(list.size() == 2);
+            return list;
+        } catch (Exception ex) {
+            Log.e("getCurrentFolder...", "error reading browser folder from preferences", ex);
+            return null;
+        }
+    }
+
+    private void restoreBrowserFolderFromPref() {
+        Log.d("restoreBrowserFolder...", "restoreBrowserFolderFromPref");
+        List<String> currentFolder = getCurrentFolderFromPref();
+        if (currentFolder == null) {
             showAllFoldersListView();
         } else {
             try {
-                List<String> list = new Gson().fromJson(value, new TypeToken<List<String>>() {
-                }.getType());
-                checkArgument(list.size() == 2);
-                showFolderListView(list.get(0), list.get(1));
+                showFolderListView(currentFolder.get(0), currentFolder.get(1));
             } catch (Exception ex) {
                 Log.e("restoreBrowserFolder...", "error restoring browser folder from preferences", ex);
                 showAllFoldersListView();
@@ -750,13 +828,62 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
         }
     }
 
+    /**
+     * display the last snapshot of the folder list (or of the current directory) while the client is
+     * starting; replaced by the actual list once the client is ready
+     */
+    private void showCachedListing() {
+        final List<String> currentFolder = getCurrentFolderFromPref();
+        if (currentFolder == null) {
+            new AsyncTask<Void, Void, List<Pair<FolderInfo, FolderStats>>>() {
+                @Override
+                protected List<Pair<FolderInfo, FolderStats>> doInBackground(Void... voids) {
+                    return listingSnapshotCache.loadFolders();
+                }
+
+                @Override
+                protected void onPostExecute(List<Pair<FolderInfo, FolderStats>> list) {
+                    if (list != null && syncthingClient == null && !isDestroyed()) {
+                        Log.d("showCachedListing", "display folders snapshot");
+                        showFolderList(list);
+                        StartupTimer.firstListShown("folders snapshot");
+                    }
+                }
+            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            final String folder = currentFolder.get(0), path = currentFolder.get(1);
+            new AsyncTask<Void, Void, List<FileInfo>>() {
+                @Override
+                protected List<FileInfo> doInBackground(Void... voids) {
+                    return listingSnapshotCache.load(folder, path, fileInfoOrdering);
+                }
+
+                @Override
+                protected void onPostExecute(List<FileInfo> list) {
+                    if (list != null && syncthingClient == null && !isDestroyed()) {
+                        Log.d("showCachedListing", "display listing snapshot for " + folder + ":" + path);
+                        ListView listView = (ListView) findViewById(R.id.main_folder_and_files_list_view);
+                        ArrayAdapter<FileInfo> adapter = createFileInfoArrayAdapter();
+                        adapter.addAll(list);
+                        listView.setAdapter(adapter);
+                        listView.setOnItemClickListener(null);
+                        listView.setOnItemLongClickListener(null);
+                        ((TextView) findViewById(R.id.main_header_folder_label)).setText(isBlank(path) ? folder : FilenameUtils.getName(path));
+                        StartupTimer.firstListShown("listing snapshot");
+                    }
+                }
+            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
     private void showAllFoldersListView() {
         Log.d("Main", "showAllFoldersListView BEGIN");
+        folderListUpdater.unbind();
+        indexRefreshScheduler.setBrowsedFolder(null);
         if (indexBrowser != null) {
             indexBrowser.close();
             indexBrowser = null;
         }
-        ListView listView = (ListView) findViewById(R.id.main_folder_and_files_list_view);
         List<Pair<FolderInfo, FolderStats>> list = Lists.newArrayList(folderBrowser.getFolderInfoAndStatsList());
         Collections.sort(list, Ordering.natural().onResultOf(new Function<Pair<FolderInfo, FolderStats>, String>() {
             @Override
@@ -765,6 +892,17 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
             }
         }));
         Log.i("Main", "list folders = " + list + " (" + list.size() + " records");
+        showFolderList(list);
+        listingSnapshotCache.saveFoldersLater(list);
+        StartupTimer.firstListShown("folders");
+        isBrowsingFolder = false;
+        updateButtonsVisibility();
+        saveCurrentFolder();
+        Log.d("Main", "showAllFoldersListView END");
+    }
+
+    private void showFolderList(List<Pair<FolderInfo, FolderStats>> list) {
+        ListView listView = (ListView) findViewById(R.id.main_folder_and_files_list_view);
         ArrayAdapter adapter = new ArrayAdapter<Pair<FolderInfo, FolderStats>>(this, R.layout.listview_folder, list) {
             @NonNull
             @Override
@@ -785,15 +923,15 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
+                if (syncthingClient == null) {
+                    return; // still starting, displaying folders snapshot
+                }
                 String folder = ((Pair<FolderInfo, FolderStats>) listView.getItemAtPosition(position)).getLeft().getFolder();
                 showFolderListView(folder, null);
             }
         });
-        isBrowsingFolder = false;
-        updateButtonsVisibility();
-        saveCurrentFolder();
+        listView.setOnItemLongClickListener(null);
         ((TextView) findViewById(R.id.main_header_folder_label)).setText(R.string.app_name);
-        Log.d("Main", "showAllFoldersListView END");
     }
 
     private ArrayAdapter<FileInfo> createFileInfoArrayAdapter(){
@@ -801,28 +939,54 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
             @NonNull
             @Override
             public View getView(int position, View v, ViewGroup parent) {
-                if (v == null) {
-                    v = LayoutInflater.from(getContext()).inflate(R.layout.listview_file, null);
-                }
-                FileInfo fileInfo = getItem(position);
-                ((TextView) v.findViewById(R.id.file_label)).setText(fileInfo.getFileName());
-                if (fileInfo.isDirectory()) {
-                    ((TextView) v.findViewById(R.id.file_icon)).setText(R.string.icon_folder_o);
-                    ((TextView) v.findViewById(R.id.file_size)).setVisibility(View.GONE);
-                } else {
-                    ((TextView) v.findViewById(R.id.file_icon)).setText(R.string.icon_file_o);
-                    ((TextView) v.findViewById(R.id.file_size)).setVisibility(View.VISIBLE);
-                    ((TextView) v.findViewById(R.id.file_size)).setText(FileUtils.byteCountToDisplaySize(fileInfo.getSize())
-                            +" - last modified "
-                            + DateUtils.getRelativeDateTimeString(MainActivity.this,fileInfo.getLastModified().getTime(),DateUtils.MINUTE_IN_MILLIS,DateUtils.WEEK_IN_MILLIS,0));
-                }
-                return v;
+                return getFileInfoView(getItem(position), v);
             }
         };
     }
 
+    /**
+     * adapter over list, that is used as is (not copied), so it must not be modified through the adapter
+     */
+    private ArrayAdapter<FileEntry> createFileEntryArrayAdapter(List<FileEntry> list){
+        return new ArrayAdapter<FileEntry>(this, R.layout.listview_file, list) {
+            @NonNull
+            @Override
+            public View getView(int position, View v, ViewGroup parent) {
+                FileEntry fileEntry = getItem(position);
+                return getFileView(fileEntry.getFileName(), fileEntry.isDirectory(), fileEntry.getSize(), fileEntry.getLastModified(), v);
+            }
+        };
+    }
+
+    private View getFileInfoView(FileInfo fileInfo, View v) {
+        v = getFileView(fileInfo.getFileName(), fileInfo.isDirectory(), fileInfo.isDirectory() ? 0 : fileInfo.getSize(), fileInfo.getLastModified().getTime(), v);
+        if (thumbnailLoader != null) {
+            thumbnailLoader.bind((ImageView) v.findViewById(R.id.file_thumbnail), v.findViewById(R.id.file_icon), fileInfo);
+        }
+        return v;
+    }
+
+    private View getFileView(String fileName, boolean isDirectory, long size, long lastModified, View v) {
+        if (v == null) {
+            v = LayoutInflater.from(this).inflate(R.layout.listview_file, null);
+        }
+        ((TextView) v.findViewById(R.id.file_label)).setText(fileName);
+        if (isDirectory) {
+            ((TextView) v.findViewById(R.id.file_icon)).setText(R.string.icon_folder_o);
+            ((TextView) v.findViewById(R.id.file_size)).setVisibility(View.GONE);
+        } else {
+            ((TextView) v.findViewById(R.id.file_icon)).setText(R.string.icon_file_o);
+            ((TextView) v.findViewById(R.id.file_size)).setVisibility(View.VISIBLE);
+            ((TextView) v.findViewById(R.id.file_size)).setText(FileUtils.byteCountToDisplaySize(size)
+                    +" - last modified "
+                    + DateUtils.getRelativeDateTimeString(MainActivity.this,lastModified,DateUtils.MINUTE_IN_MILLIS,DateUtils.WEEK_IN_MILLIS,0));
+        }
+        return v;
+    }
+
     private void showFolderListView(String folder, @Nullable String previousPath) {
         Log.d("showFolderListView", "showFolderListView BEGIN");
+        indexRefreshScheduler.setBrowsedFolder(folder);
         if (indexBrowser != null && equal(folder, indexBrowser.getFolder())) {
             Log.d("showFolderListView", "reuse current index browser");
             indexBrowser.navigateToNearestPath(previousPath);
@@ -838,6 +1002,7 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
                     .setFolder(folder)
                     .buildToNearestPath(previousPath);
         }
+        folderListUpdater.unbind();
         ListView listView = (ListView) findViewById(R.id.main_folder_and_files_list_view);
         ArrayAdapter adapter = createFileInfoArrayAdapter();
         listView.setAdapter(adapter);
@@ -849,6 +1014,27 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
                 navigateToFolder(fileInfo);
             }
         });
+        listView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> adapterView, View view, int position, long l) {
+                final FileInfo fileInfo = (FileInfo) listView.getItemAtPosition(position);
+                if (!fileInfo.isFile()) {
+                    return false;
+                }
+                new AlertDialog.Builder(MainActivity.this)
+                        .setTitle("save file")
+                        .setMessage("save file " + fileInfo.getFileName() + " to downloads?")
+                        .setPositiveButton("yes", new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                saveFile(fileInfo);
+                            }
+                        })
+                        .setNegativeButton("no", null)
+                        .show();
+                return true;
+            }
+        });
         isBrowsingFolder = true;
         navigateToFolder(indexBrowser.getCurrentPathInfo());
         updateButtonsVisibility();
@@ -866,27 +1052,65 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
             showAllFoldersListView(); //navigate back to folder list
         } else {
             if (fileInfo.isDirectory()) {
+                folderListUpdater.unbind();
+                listingPrefetcher.cancel();
                 indexBrowser.navigateTo(fileInfo);
                 FileInfo newFileInfo=PathUtils.isParent(fileInfo.getPath())?indexBrowser.getCurrentPathInfo():fileInfo;
-                if (!indexBrowser.isCacheReadyAfterALittleWait()) {
+                final String folder = indexBrowser.getFolder(), path = indexBrowser.getCurrentPath();
+                // a prefetched listing is displayed right away, without waiting for the index browser cache
+                final List<FileInfo> prefetched = listingPrefetcher.getListing(folder, path);
+                if (prefetched != null || !indexBrowser.isCacheReadyAfterALittleWait()) {
                     Log.d("navigateToFolder", "load folder cache bg");
-                    new AsyncTask<Void, Void, Void>() {
+                    final IndexBrowser currentIndexBrowser = indexBrowser;
+                    if (prefetched != null) {
+                        Log.d("navigateToFolder", "display prefetched listing for path = '" + path + "'");
+                        showFolderContent(prefetched, newFileInfo);
+                    }
+                    new AsyncTask<Void, List<FileInfo>, Void>() {
+                        private boolean snapshotDisplayed = prefetched != null;
+
                         @Override
                         protected void onPreExecute() {
-                            updateMainProgressBar(true,"open directory: " + (indexBrowser.isRoot() ? folderBrowser.getFolderInfo(indexBrowser.getFolder()).getLabel() : indexBrowser.getCurrentPathFileName()));
+                            if (!snapshotDisplayed) {
+                                updateMainProgressBar(true,"open directory: " + (indexBrowser.isRoot() ? folderBrowser.getFolderInfo(indexBrowser.getFolder()).getLabel() : indexBrowser.getCurrentPathFileName()));
+                            }
                         }
 
                         @Override
                         protected Void doInBackground(Void... voids) {
-                            indexBrowser.waitForCacheReady();
+                            if (prefetched == null) {
+                                List<FileInfo> snapshot = listingSnapshotCache.load(folder, path, fileInfoOrdering);
+                                if (snapshot != null && !snapshot.isEmpty()) {
+                                    publishProgress(snapshot);
+                                }
+                            }
+                            currentIndexBrowser.waitForCacheReady();
                             return null;
                         }
 
+                        @Override
+                        protected void onProgressUpdate(List<FileInfo>... snapshot) {
+                            if (isDisplayingPath(currentIndexBrowser, path)) {
+                                Log.d("navigateToFolder", "display listing snapshot for path = '" + path + "'");
+                                updateMainProgressBar(false,null);
+                                showFolderContent(snapshot[0], newFileInfo);
+                                snapshotDisplayed = true;
+                            }
+                        }
+
                         @Override
                         protected void onPostExecute(Void aVoid) {
                             Log.d("navigateToFolder", "cache ready, navigate to folder");
                             updateMainProgressBar(false,null);
-                            navigateToFolder(newFileInfo);
+                            if (!isDisplayingPath(currentIndexBrowser, path)) {
+                                Log.d("navigateToFolder", "path changed while loading, skip update for path = '" + path + "'");
+                            } else if (snapshotDisplayed) {
+                                List<FileInfo> list = indexBrowser.listFiles();
+                                folderListUpdater.applyListing(list);
+                                listingSnapshotCache.saveLater(folder, path, list);
+                            } else {
+                                navigateToFolder(newFileInfo);
+                            }
                         }
                     }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 } else {
@@ -894,16 +1118,8 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
                     Log.i("navigateToFolder", "list for path = '" + indexBrowser.getCurrentPath() + "' list = " + list.size() + " records");
                     Log.d("navigateToFolder", "list for path = '" + indexBrowser.getCurrentPath() + "' list = " + list);
                     checkArgument(!list.isEmpty());//list must contain at least the 'parent' path
-                    ListView listView = (ListView) findViewById(R.id.main_folder_and_files_list_view);
-                    ArrayAdapter adapter = (ArrayAdapter) listView.getAdapter();
-                    adapter.clear();
-                    adapter.addAll(list);
-                    adapter.notifyDataSetChanged();
-                    listView.setSelection(0);
-                    saveCurrentFolder();
-                    ((TextView) findViewById(R.id.main_header_folder_label)).setText(indexBrowser.isRoot()
-                            ?folderBrowser.getFolderInfo(indexBrowser.getFolder()).getLabel()
-                            :newFileInfo.getFileName());
+                    showFolderContent(list, newFileInfo);
+                    listingSnapshotCache.saveLater(indexBrowser.getFolder(), indexBrowser.getCurrentPath(), list);
                 }
             } else {
                 pullFile(fileInfo);
@@ -912,6 +1128,50 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
         Log.d("navigateToFolder", "END");
     }
 
+    private boolean isDisplayingPath(IndexBrowser expectedIndexBrowser, String path) {
+        return indexBrowser != null && indexBrowser == expectedIndexBrowser && equal(indexBrowser.getCurrentPath(), path);
+    }
+
+    private void showFolderContent(List<FileInfo> list, FileInfo pathInfo) {
+        ListView listView = (ListView) findViewById(R.id.main_folder_and_files_list_view);
+        ArrayAdapter adapter = (ArrayAdapter) listView.getAdapter();
+        adapter.clear();
+        adapter.addAll(list);
+        adapter.notifyDataSetChanged();
+        listView.setSelection(0);
+        folderListUpdater.bind(adapter, indexBrowser.getFolder(), indexBrowser.getCurrentPath(), fileInfoOrdering);
+        StartupTimer.firstListShown("listing");
+        saveCurrentFolder();
+        ((TextView) findViewById(R.id.main_header_folder_label)).setText(indexBrowser.isRoot()
+                ?folderBrowser.getFolderInfo(indexBrowser.getFolder()).getLabel()
+                :pathInfo.getFileName());
+        listView.post(new Runnable() {
+            @Override
+            public void run() {
+                prefetchVisibleDirectories();
+            }
+        });
+    }
+
+    private void prefetchVisibleDirectories() {
+        if (indexBrowser == null || listingPrefetcher == null || searchModeOn) {
+            return;
+        }
+        ListView listView = (ListView) findViewById(R.id.main_folder_and_files_list_view);
+        List<String> paths = Lists.newArrayList();
+        if (!indexBrowser.isRoot()) {
+            paths.add(indexBrowser.getCurrentPathInfo().getParent());
+        }
+        int lastPosition = Math.min(listView.getLastVisiblePosition(), listView.getCount() - 1);
+        for (int position = Math.max(0, listView.getFirstVisiblePosition()); position <= lastPosition; position++) {
+            Object item = listView.getItemAtPosition(position);
+            if (item instanceof FileInfo && ((FileInfo) item).isDirectory() && !PathUtils.isParent(((FileInfo) item).getPath())) {
+                paths.add(((FileInfo) item).getPath());
+            }
+        }
+        listingPrefetcher.prefetch(indexBrowser.getFolder(), paths, fileInfoOrdering);
+    }
+
     private void updateFolderListView() {
         Log.d("updateFolderListView", "BEGIN");
         if (indexBrowser == null) {
@@ -988,13 +1248,18 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
     private void toggleFileSort(){
         fileInfoOrdering=availableFileInfoOrderings.get( (availableFileInfoOrderings.indexOf(fileInfoOrdering)+1)%availableFileInfoOrderings.size() );
         ((TextView)findViewById(R.id.main_header_sort_order_button)).setText(iconResourceForOrdering.get(fileInfoOrdering));
+        if(listingPrefetcher!=null){
+            listingPrefetcher.clear();
+        }
         if(indexBrowser!=null){
             indexBrowser.setOrdering(fileInfoOrdering);
             updateFolderListView();
         }
-        if(indexFinder!=null){
-            indexFinder.setOrdering(fileInfoOrdering);
-            updateSearchResultListView();
+        if(searchModeOn){
+            String text=((EditText) findViewById(R.id.main_search_bar_input_field)).getText().toString();
+            if(!StringUtils.isBlank(text)) {
+                submitSearch(text);
+            }
         }
     }
 
@@ -1016,110 +1281,153 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
     }
 
     private void pullFile(final FileInfo fileInfo) {
+        File cachedFile = fileCache.get(fileInfo);
+        if (cachedFile != null) {
+            Log.i("pullFile", "open cached file = " + cachedFile + " for " + fileInfo.getPath());
+            openFile(cachedFile);
+            return;
+        }
         Log.i("pullFile", "pulling file = " + fileInfo);
-        new AsyncTask<Void, BlockPuller.FileDownloadObserver, Pair<File, Exception>>() {
-            private ProgressDialog progressDialog;
-            private Thread thread;
-            private boolean cancelled = false;
+        try {
+            transferListener.onTransferUpdated(syncthingService.startDownload(fileInfo));
+        } catch (Exception ex) {
+            Log.e("pullFile", "error starting download", ex);
+            Toast.makeText(MainActivity.this, "error downloading file: " + ex, Toast.LENGTH_LONG).show();
+        }
+    }
 
-            @Override
-            protected void onPreExecute() {
-                progressDialog = new ProgressDialog(MainActivity.this);
-                progressDialog.setMessage("downloading file " + fileInfo.getFileName());
-                progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-                progressDialog.setCancelable(true);
-                progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
-                    @Override
-                    public void onCancel(DialogInterface dialogInterface) {
-                        cancelled = true;
-                        if (thread != null) {
-                            thread.interrupt();
-                        }
-                        Toast.makeText(MainActivity.this, "download aborted by user", Toast.LENGTH_SHORT).show();
-                    }
-                });
-                progressDialog.setIndeterminate(true);
-                progressDialog.show();
-            }
+    private void saveFile(FileInfo fileInfo) {
+        Log.i("saveFile", "saving file = " + fileInfo);
+        try {
+            transferListener.onTransferUpdated(syncthingService.startSave(fileInfo));
+        } catch (Exception ex) {
+            Log.e("saveFile", "error starting save", ex);
+            Toast.makeText(MainActivity.this, "error saving file: " + ex, Toast.LENGTH_LONG).show();
+        }
+    }
 
-            @Override
-            protected Pair<File, Exception> doInBackground(Void... voidd) {
-                try {
-                    try (BlockPuller.FileDownloadObserver fileDownloadObserver = syncthingClient.pullFile(fileInfo.getFolder(), fileInfo.getPath())) {
-                        publishProgress(fileDownloadObserver);
-                        while (!fileDownloadObserver.isCompleted() && !cancelled) {
-                            fileDownloadObserver.waitForProgressUpdate();
-                            Log.i("pullFile", "download progress = " + fileDownloadObserver.getProgressMessage());
-                            publishProgress(fileDownloadObserver);
-                        }
-                        if (cancelled) {
-                            return null;
+    private final Map<Integer, ProgressDialog> transferDialogs = Maps.newHashMap();
+
+    /**
+     * displays transfers run by the service: a progress dialog while running, and the result once
+     * finished; transfers started by a previous instance of this activity are attached again on bind
+     */
+    private final TransferTask.Listener transferListener = new TransferTask.Listener() {
+        @Override
+        public void onTransferUpdated(final TransferTask transferTask) {
+            if (isDestroyed()) {
+                return;
+            }
+            ProgressDialog progressDialog = transferDialogs.get(transferTask.getId());
+            if (transferTask.isRunning()) {
+                if (progressDialog == null) {
+                    progressDialog = new ProgressDialog(MainActivity.this);
+                    progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+                    progressDialog.setProgressNumberFormat(null);
+                    progressDialog.setCancelable(true);
+                    progressDialog.setIndeterminate(true);
+                    progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                        @Override
+                        public void onCancel(DialogInterface dialogInterface) {
+                            transferDialogs.remove(transferTask.getId());
+                            syncthingService.cancelTransfer(transferTask.getId());
+                            Toast.makeText(MainActivity.this, (transferTask.getType() == TransferTask.Type.UPLOAD ? "upload" : "download")
+                                    + " aborted by user", Toast.LENGTH_SHORT).show();
                         }
-                        File outputDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-                        File outputFile = new File(outputDir, fileInfo.getFileName());
-                        FileUtils.copyInputStreamToFile(fileDownloadObserver.getInputStream(), outputFile);
-                        Log.i("pullFile", "downloaded file = " + fileInfo.getPath());
-                        return Pair.of(outputFile, null);
-                    }
-                } catch (Exception ex) {
-                    if (cancelled) {
-                        return null;
-                    }
-                    Log.e("pullFile", "file download exception", ex);
-                    return Pair.of(null, ex);
+                    });
+                    progressDialog.setMessage(transferTask.getMessage());
+                    progressDialog.show();
+                    transferDialogs.put(transferTask.getId(), progressDialog);
                 }
-            }
-
-            @Override
-            protected void onProgressUpdate(BlockPuller.FileDownloadObserver... fileDownloadObserver) {
-                if (fileDownloadObserver[0].getProgress() > 0) {
+                if (transferTask.getMax() > 0) {
                     progressDialog.setIndeterminate(false);
-                    progressDialog.setMax((int) (long) fileInfo.getSize());
-                    progressDialog.setProgress((int) (fileDownloadObserver[0].getProgress() * fileInfo.getSize()));
+                    progressDialog.setMax(transferTask.getMax());
+                    progressDialog.setProgress(transferTask.getProgress());
                 }
-            }
-
-            @Override
-            protected void onPostExecute(Pair<File, Exception> res) {
-                progressDialog.dismiss();
-                if (cancelled) {
-                    // do nothing
-                } else if (res.getLeft() == null) {
-                    Toast.makeText(MainActivity.this, "error downloading file: " + res.getRight(), Toast.LENGTH_LONG).show();
-                } else {
-                    String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(FilenameUtils.getExtension(res.getLeft().getName()));
-                    Intent newIntent = new Intent(Intent.ACTION_VIEW);
-                    Log.i("Main", "open file = " + res.getLeft().getName() + " (" + mimeType + ")");
-                    newIntent.setDataAndType(Uri.fromFile(res.getLeft()), mimeType);
-                    newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                    Intent chooser = Intent.createChooser(newIntent, null);
-                    try {
-                        startActivity(chooser);
-                    } catch (ActivityNotFoundException e) {
-                        Toast.makeText(MainActivity.this, "no handler found for this file: " + res.getLeft().getName() + " (" + mimeType + ")", Toast.LENGTH_LONG).show();
-                    }
+                progressDialog.setMessage(transferTask.getMessage());
+            } else {
+                if (progressDialog != null) {
+                    progressDialog.dismiss();
+                    transferDialogs.remove(transferTask.getId());
                 }
+                switch (transferTask.getStatus()) {
+                    case COMPLETED:
+                        if (transferTask.getType() == TransferTask.Type.DOWNLOAD) {
+                            openFile(transferTask.getResultFile());
+                        } else if (transferTask.getType() == TransferTask.Type.SAVE) {
+                            Toast.makeText(MainActivity.this, transferTask.getMessage(), Toast.LENGTH_LONG).show();
+                        } else {
+                            Toast.makeText(MainActivity.this, transferTask.getMessage(), Toast.LENGTH_LONG).show();
+                            if (syncthingClient != null) {
+                                updateFolderListView();
+                            }
+                        }
+                        break;
+                    case FAILED:
+                        Toast.makeText(MainActivity.this, (transferTask.getType() == TransferTask.Type.UPLOAD ? "error uploading files: " : "error downloading file: ")
+                                + transferTask.getError(), Toast.LENGTH_LONG).show();
+                        break;
+                }
+                syncthingService.acknowledgeTransfer(transferTask.getId());
             }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    };
+
+    private void openFile(File file) {
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(FilenameUtils.getExtension(file.getName()));
+        Intent newIntent = new Intent(Intent.ACTION_VIEW);
+        Log.i("Main", "open file = " + file.getName() + " (" + mimeType + ")");
+        Uri uri;
+        try {
+            uri = CachedFileProvider.getUri(this, file);
+        } catch (Exception ex) {
+            Log.w("Main", "unable to serve file " + file + " from file cache, open it directly", ex);
+            uri = Uri.fromFile(file);
+        }
+        newIntent.setDataAndType(uri, mimeType);
+        newIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        Intent chooser = Intent.createChooser(newIntent, null);
+        try {
+            startActivity(chooser);
+        } catch (ActivityNotFoundException e) {
+            Toast.makeText(MainActivity.this, "no handler found for this file: " + file.getName() + " (" + mimeType + ")", Toast.LENGTH_LONG).show();
+        }
     }
 
-    private final static String LAST_INDEX_UPDATE_TS_PREF = "LAST_INDEX_UPDATE_TS";
+    private void offerInterruptedDownloadRestart() {
+        List<DownloadJournal.Entry> interruptedDownloads = downloadJournal.getInterruptedDownloads();
+        if (!interruptedDownloads.isEmpty() && !isHandlingUploadIntent) {
+            final DownloadJournal.Entry entry = interruptedDownloads.iterator().next();
+            Log.i("Main", "found interrupted download = " + entry.getFileInfo().getPath() + " (" + ((int) (entry.getProgress() * 100)) + "%)");
+            new AlertDialog.Builder(MainActivity.this)
+                    .setTitle("restart download")
+                    .setMessage("download of file " + entry.getFileInfo().getFileName() + " was interrupted at "
+                            + ((int) (entry.getProgress() * 100)) + "%, download it again?")
+                    .setPositiveButton("yes", new DialogInterface.OnClickListener() {
 
-    private
-    @Nullable
-    Date getLastIndexUpdateFromPref() {
-        long lastUpdate = getPreferences(MODE_PRIVATE).getLong(LAST_INDEX_UPDATE_TS_PREF, -1);
-        if (lastUpdate < 0) {
-            return null;
-        } else {
-            return new Date(lastUpdate);
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            pullFile(entry.getFileInfo());
+                        }
+                    })
+                    .setNegativeButton("no", new DialogInterface.OnClickListener() {
+
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            downloadJournal.discard(entry);
+                        }
+                    })
+                    .show();
         }
     }
 
+    private IndexRefreshScheduler indexRefreshScheduler;
+
     private void updateIndexFromRemote() {
         Log.d("Main", "updateIndexFromRemote BEGIN");
         if (indexUpdateInProgress) {
-            Toast.makeText(MainActivity.this, "index update already in progress", Toast.LENGTH_SHORT).show();
+            indexUpdatePending = true;
+            Toast.makeText(MainActivity.this, "index update queued", Toast.LENGTH_SHORT).show();
         } else {
             indexUpdateInProgress = true;
             new AsyncTask<Void, Void, Exception>() {
@@ -1149,31 +1457,58 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
                     }
                     updateFolderListView();
                     indexUpdateInProgress = false;
-                    getPreferences(MODE_PRIVATE).edit()
-                            .putLong(LAST_INDEX_UPDATE_TS_PREF, new Date().getTime())
-                            .apply();
+                    indexProgressReporter.reset();
+                    indexRefreshScheduler.onRefreshCompleted(ex == null);
+                    if (indexUpdatePending) {
+                        indexUpdatePending = false;
+                        updateIndexFromRemote();
+                    }
                 }
             }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         }
         Log.d("Main", "updateIndexFromRemote END (running bg)");
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (syncthingClient != null) {
+            indexRefreshScheduler.start();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        indexRefreshScheduler.stop();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        try {
-            new AsyncTask<Void, Void, Void>() {
-                @Override
-                protected Void doInBackground(Void... voids) {
-                    closeClient();
-                    configuration.close();
-                    configuration=null;
-                    return null;
-                }
-            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR).get();
-        } catch (Exception ex) {
-            Log.w("Main", "error closing client", ex);
+        indexRefreshScheduler.close();
+        indexProgressReporter.close();
+        listingSnapshotCache.close();
+        searchScheduler.close();
+        contentMetadataResolver.close();
+        for (ProgressDialog progressDialog : transferDialogs.values()) {
+            progressDialog.dismiss(); // transfers keep running in the service
         }
+        transferDialogs.clear();
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... voids) {
+                releaseClient();
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        if (syncthingService != null) {
+            syncthingService.setTransferListener(null);
+            if (isFinishing()) {
+                syncthingService.release();
+            }
+        }
+        unbindService(syncthingServiceConnection);
     }
 
     public void openQrcode() {
@@ -1231,19 +1566,4 @@ public class MainActivity extends AppCompatActivity implements ActivityCompat.On
         }
     }
 
-    private String getDeviceName() {
-        String manufacturer = nullToEmpty(Build.MANUFACTURER);
-        String model = nullToEmpty(Build.MODEL);
-        String deviceName;
-        if (model.startsWith(manufacturer)) {
-            deviceName = capitalize(model);
-        } else {
-            deviceName = capitalize(manufacturer) + " " + model;
-        }
-        if (isBlank(deviceName)) {
-            deviceName = "android";
-        }
-        return deviceName;
-    }
-
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.browser;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+import android.widget.ArrayAdapter;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import it.anyplace.sync.core.beans.FileInfo;
+import it.anyplace.sync.core.utils.PathUtils;
+
+import static com.google.common.base.Objects.equal;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * applies index records to the file list currently shown, in place; records received between two frames are
+ * coalesced and applied with a single adapter notification, keeping scroll position.
+ */
+public class FolderListUpdater {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, FileInfo> pendingRecords = Maps.newLinkedHashMap();
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            applyPendingRecords();
+        }
+    };
+    private final Runnable scheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+    };
+    private boolean frameScheduled = false;
+    private ArrayAdapter<FileInfo> adapter;
+    private String folder, path;
+    private Comparator<FileInfo> ordering;
+
+    /**
+     * bind updater to the list currently displayed; pending records for a previous list are dropped. Must be
+     * called from ui thread.
+     */
+    public void bind(ArrayAdapter<FileInfo> adapter, String folder, String path, Comparator<FileInfo> ordering) {
+        synchronized (pendingRecords) {
+            this.adapter = checkNotNull(adapter);
+            this.folder = checkNotNull(folder);
+            this.path = checkNotNull(path);
+            this.ordering = checkNotNull(ordering);
+            pendingRecords.clear();
+        }
+    }
+
+    public void unbind() {
+        synchronized (pendingRecords) {
+            adapter = null;
+            folder = null;
+            path = null;
+            pendingRecords.clear();
+        }
+    }
+
+    /**
+     * queue index records for the bound list; records not belonging to the displayed directory are ignored.
+     * May be called from any thread.
+     */
+    public void submit(String folder, Iterable<FileInfo> records) {
+        synchronized (pendingRecords) {
+            if (adapter == null || !equal(this.folder, folder)) {
+                return;
+            }
+            for (FileInfo fileInfo : records) {
+                if (equal(fileInfo.getParent(), path)) {
+                    pendingRecords.put(fileInfo.getPath(), fileInfo);
+                }
+            }
+            if (!pendingRecords.isEmpty() && !frameScheduled) {
+                frameScheduled = true;
+                handler.post(scheduleFrame);
+            }
+        }
+    }
+
+    private void applyPendingRecords() {
+        Map<String, FileInfo> records;
+        ArrayAdapter<FileInfo> adapter;
+        Comparator<FileInfo> ordering;
+        synchronized (pendingRecords) {
+            frameScheduled = false;
+            if (this.adapter == null || pendingRecords.isEmpty()) {
+                pendingRecords.clear();
+                return;
+            }
+            records = Maps.newLinkedHashMap(pendingRecords);
+            pendingRecords.clear();
+            adapter = this.adapter;
+            ordering = this.ordering;
+        }
+        List<FileInfo> list = Lists.newArrayListWithCapacity(adapter.getCount() + records.size());
+        for (int i = 0; i < adapter.getCount(); i++) {
+            FileInfo fileInfo = adapter.getItem(i);
+            if (!records.containsKey(fileInfo.getPath())) {
+                list.add(fileInfo);
+            }
+        }
+        int firstSortedPosition = 0;
+        while (firstSortedPosition < list.size() && PathUtils.isParent(list.get(firstSortedPosition).getPath())) {
+            firstSortedPosition++;
+        }
+        List<FileInfo> sortedPart = list.subList(firstSortedPosition, list.size());
+        int inserted = 0, removed = adapter.getCount() - list.size();
+        for (FileInfo fileInfo : records.values()) {
+            if (!fileInfo.isDeleted()) {
+                int position = Collections.binarySearch(sortedPart, fileInfo, ordering);
+                sortedPart.add(position < 0 ? -position - 1 : position, fileInfo);
+                inserted++;
+            }
+        }
+        Log.d("FolderListUpdater", "apply " + records.size() + " records to path = '" + path + "', removed = " + removed + " inserted = " + inserted);
+        adapter.setNotifyOnChange(false);
+        adapter.clear();
+        adapter.addAll(list);
+        adapter.notifyDataSetChanged();
+    }
+
+    /**
+     * replace the content of the bound list with a fresh listing; the adapter is touched only if the listing
+     * differs from the one displayed. Must be called from ui thread.
+     */
+    public void applyListing(List<FileInfo> list) {
+        ArrayAdapter<FileInfo> adapter;
+        synchronized (pendingRecords) {
+            adapter = this.adapter;
+        }
+        if (adapter == null) {
+            return;
+        }
+        Map<String, FileInfo> displayed = Maps.newHashMapWithExpectedSize(adapter.getCount());
+        for (int i = 0; i < adapter.getCount(); i++) {
+            displayed.put(adapter.getItem(i).getPath(), adapter.getItem(i));
+        }
+        int changed = 0;
+        for (FileInfo fileInfo : list) {
+            FileInfo current = displayed.remove(fileInfo.getPath());
+            if (current == null || current.isDirectory() != fileInfo.isDirectory()
+                    || !equal(current.getSize(), fileInfo.getSize()) || !equal(current.getLastModified(), fileInfo.getLastModified())) {
+                changed++;
+            }
+        }
+        int removed = displayed.size();
+        Log.d("FolderListUpdater", "apply listing to path = '" + path + "', changed = " + changed + " removed = " + removed);
+        if (changed > 0 || removed > 0) {
+            adapter.setNotifyOnChange(false);
+            adapter.clear();
+            adapter.addAll(list);
+            adapter.notifyDataSetChanged();
+        }
+    }
+}
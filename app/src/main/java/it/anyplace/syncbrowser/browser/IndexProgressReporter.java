@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.browser;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.Closeable;
+
+/**
+ * coalesces index record events (one per received batch) into a single progress update per interval,
+ * delivered on ui thread, with ingestion throughput in records per second.
+ */
+public class IndexProgressReporter implements Closeable {
+
+    private final static long PUBLISH_INTERVAL_MILLIS = 500;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Listener listener;
+    private final Runnable publishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+    private String folder;
+    private double completed;
+    private long pendingRecords = 0, totalRecords = 0, windowStartTime = 0, ingestionStartTime = 0;
+    private double throughput = 0;
+    private boolean scheduled = false, closed = false;
+
+    public IndexProgressReporter(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * record received index records (any thread); completed is the folder synchronization ratio (0-1)
+     */
+    public synchronized void onRecords(String folder, double completed, int count) {
+        long now = System.currentTimeMillis();
+        this.folder = folder;
+        this.completed = completed;
+        if (ingestionStartTime == 0) {
+            ingestionStartTime = now;
+        }
+        pendingRecords += count;
+        totalRecords += count;
+        if (!scheduled && !closed) {
+            scheduled = true;
+            windowStartTime = now;
+            handler.postDelayed(publishRunnable, PUBLISH_INTERVAL_MILLIS);
+        }
+    }
+
+    private void publish() {
+        IndexProgress progress;
+        synchronized (this) {
+            scheduled = false;
+            if (closed) {
+                return;
+            }
+            double rate = pendingRecords * 1000d / Math.max(1, System.currentTimeMillis() - windowStartTime);
+            throughput = throughput == 0 ? rate : throughput * 0.7 + rate * 0.3;
+            pendingRecords = 0;
+            progress = new IndexProgress(folder, completed, totalRecords, throughput);
+        }
+        listener.onProgress(progress);
+    }
+
+    /**
+     * an index update is completed; log ingestion summary and reset counters
+     */
+    public synchronized void reset() {
+        if (totalRecords > 0) {
+            long duration = System.currentTimeMillis() - ingestionStartTime;
+            Log.i("IndexProgressReporter", "ingested " + totalRecords + " index records in " + duration + "ms ("
+                    + (totalRecords * 1000 / Math.max(1, duration)) + " records/s)");
+        }
+        pendingRecords = totalRecords = ingestionStartTime = 0;
+        throughput = 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        handler.removeCallbacks(publishRunnable);
+    }
+
+    public static class IndexProgress {
+        private final String folder;
+        private final double completed, recordsPerSecond;
+        private final long totalRecords;
+
+        private IndexProgress(String folder, double completed, long totalRecords, double recordsPerSecond) {
+            this.folder = folder;
+            this.completed = completed;
+            this.totalRecords = totalRecords;
+            this.recordsPerSecond = recordsPerSecond;
+        }
+
+        /**
+         * folder of the last received records
+         */
+        public String getFolder() {
+            return folder;
+        }
+
+        public double getCompleted() {
+            return completed;
+        }
+
+        public long getTotalRecords() {
+            return totalRecords;
+        }
+
+        public double getRecordsPerSecond() {
+            return recordsPerSecond;
+        }
+    }
+
+    public interface Listener {
+
+        void onProgress(IndexProgress progress);
+    }
+}
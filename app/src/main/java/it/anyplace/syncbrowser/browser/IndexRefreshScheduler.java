@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.browser;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Objects.equal;
+
+/**
+ * decides when to refresh the remote index, tracking each folder separately: folders that did not change
+ * back off exponentially (except the folder being browsed), and all intervals are stretched on metered
+ * networks and on low battery. A refresh is due as soon as any folder is due; since the client refreshes
+ * the index of all folders at once, no interval is shorter than the base one.
+ */
+public class IndexRefreshScheduler implements Closeable {
+
+    private final static long BASE_INTERVAL_MILLIS = 10 * 60 * 1000;
+    private final static long MAX_INTERVAL_MILLIS = 4 * 60 * 60 * 1000;
+    private final static int CONSTRAINED_INTERVAL_FACTOR = 4;
+    private final static int LOW_BATTERY_PERCENT = 20;
+
+    private final Context context;
+    private final Listener listener;
+    private final SharedPreferences preferences;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, FolderState> folderStates = Maps.newHashMap();
+    private final Runnable refreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onRefreshTime();
+        }
+    };
+    private String browsedFolder;
+    private boolean started = false, refreshInProgress = false;
+    private long lastRefresh = 0;
+
+    public IndexRefreshScheduler(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        this.preferences = context.getSharedPreferences("IndexRefreshScheduler", Context.MODE_PRIVATE);
+    }
+
+    private FolderState getFolderState(String folder) {
+        FolderState folderState = folderStates.get(folder);
+        if (folderState == null) {
+            folderState = new FolderState();
+            folderState.lastRefresh = preferences.getLong(folder, 0);
+            folderStates.put(folder, folderState);
+        }
+        return folderState;
+    }
+
+    public synchronized void addFolders(Iterable<String> folders) {
+        for (String folder : folders) {
+            getFolderState(folder);
+        }
+        reschedule();
+    }
+
+    public synchronized void setBrowsedFolder(@Nullable String folder) {
+        if (!equal(folder, browsedFolder)) {
+            browsedFolder = folder;
+            reschedule();
+        }
+    }
+
+    /**
+     * to be called when index records are received for folder (any thread)
+     */
+    public synchronized void onIndexRecords(String folder) {
+        getFolderState(folder).changed = true;
+    }
+
+    /**
+     * to be called when a refresh (triggered by this scheduler or not) has been completed
+     */
+    public synchronized void onRefreshCompleted(boolean success) {
+        refreshInProgress = false;
+        long now = System.currentTimeMillis();
+        lastRefresh = now;
+        SharedPreferences.Editor editor = preferences.edit();
+        for (Map.Entry<String, FolderState> entry : folderStates.entrySet()) {
+            FolderState folderState = entry.getValue();
+            if (success) {
+                folderState.interval = folderState.changed ? BASE_INTERVAL_MILLIS : Math.min(folderState.interval * 2, MAX_INTERVAL_MILLIS);
+                folderState.changed = false;
+            }
+            folderState.lastRefresh = now;
+            editor.putLong(entry.getKey(), now);
+        }
+        editor.apply();
+        reschedule();
+    }
+
+    public synchronized void start() {
+        started = true;
+        reschedule();
+    }
+
+    public synchronized void stop() {
+        started = false;
+        handler.removeCallbacks(refreshRunnable);
+    }
+
+    private long getInterval(String folder, FolderState folderState) {
+        return equal(folder, browsedFolder) ? BASE_INTERVAL_MILLIS : folderState.interval;
+    }
+
+    private void reschedule() {
+        handler.removeCallbacks(refreshRunnable);
+        if (!started || refreshInProgress) {
+            return;
+        }
+        long delay = Math.max(0, getNextRefreshTime() - System.currentTimeMillis());
+        Log.d("IndexRefreshScheduler", "next index refresh in " + (delay / 1000) + "s");
+        handler.postDelayed(refreshRunnable, delay);
+    }
+
+    /**
+     * return the time when the next refresh is due, that is when the first folder is due
+     */
+    synchronized long getNextRefreshTime() {
+        int factor = isConstrained() ? CONSTRAINED_INTERVAL_FACTOR : 1;
+        // no folder known yet (ie first run), refresh everything
+        long nextRefresh = folderStates.isEmpty() ? lastRefresh + BASE_INTERVAL_MILLIS * factor : Long.MAX_VALUE;
+        for (Map.Entry<String, FolderState> entry : folderStates.entrySet()) {
+            nextRefresh = Math.min(nextRefresh, entry.getValue().lastRefresh + getInterval(entry.getKey(), entry.getValue()) * factor);
+        }
+        return nextRefresh;
+    }
+
+    private synchronized void onRefreshTime() {
+        if (!started || refreshInProgress) {
+            return;
+        }
+        if (!isNetworkConnected()) {
+            Log.d("IndexRefreshScheduler", "no network, delay index refresh");
+            handler.postDelayed(refreshRunnable, BASE_INTERVAL_MILLIS);
+            return;
+        }
+        int factor = isConstrained() ? CONSTRAINED_INTERVAL_FACTOR : 1;
+        long now = System.currentTimeMillis();
+        List<String> dueFolders = Lists.newArrayList();
+        for (Map.Entry<String, FolderState> entry : folderStates.entrySet()) {
+            if (now - entry.getValue().lastRefresh >= getInterval(entry.getKey(), entry.getValue()) * factor) {
+                dueFolders.add(entry.getKey());
+            }
+        }
+        if (dueFolders.isEmpty() && !folderStates.isEmpty()) {
+            reschedule();
+        } else {
+            Log.i("IndexRefreshScheduler", "index refresh due for folders = " + dueFolders);
+            refreshInProgress = true;
+            listener.onRefreshDue();
+        }
+    }
+
+    private boolean isNetworkConnected() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager == null ? null : connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    /**
+     * true on metered network, or on low battery while not charging
+     */
+    private boolean isConstrained() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager != null && connectivityManager.isActiveNetworkMetered()) {
+            return true;
+        }
+        Intent batteryStatus = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (batteryStatus != null && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) {
+            int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1), scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            return level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void close() {
+        stop();
+    }
+
+    private static class FolderState {
+        private long lastRefresh = 0, interval = BASE_INTERVAL_MILLIS;
+        private boolean changed = false;
+    }
+
+    public interface Listener {
+
+        /**
+         * a refresh of the index of all folders is due; invoked on ui thread.
+         * {@link #onRefreshCompleted(boolean)} must be called when done.
+         */
+        void onRefreshDue();
+    }
+}
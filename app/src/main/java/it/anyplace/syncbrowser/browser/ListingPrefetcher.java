@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.browser;
+
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import it.anyplace.sync.bep.IndexBrowser;
+import it.anyplace.sync.bep.IndexHandler;
+import it.anyplace.sync.core.beans.FileInfo;
+import it.anyplace.sync.core.utils.PathUtils;
+import it.anyplace.syncbrowser.search.FileEntry;
+
+import static com.google.common.base.Objects.equal;
+
+/**
+ * loads directory listings in background, through a dedicated index browser, and keeps them in memory
+ * (bounded by a total entry budget, lru) so that navigating to a prefetched directory does not have to wait
+ * for the index browser cache. Listings are kept as {@link FileEntry} projections, and rebuilt as records
+ * when requested. Each call to {@link #prefetch} cancels the previous one.
+ */
+public class ListingPrefetcher implements Closeable {
+
+    private final static int MAX_CACHED_ENTRIES = 20000;
+
+    private final IndexHandler indexHandler;
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private final AtomicInteger generation = new AtomicInteger(0);
+    private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+    private int cachedEntries = 0;
+    private String inFlightKey;
+    private boolean inFlightInvalidated = false;
+    private IndexBrowser indexBrowser;
+
+    public ListingPrefetcher(IndexHandler indexHandler) {
+        this.indexHandler = indexHandler;
+    }
+
+    private static String getKey(String folder, String path) {
+        return folder + ":" + path;
+    }
+
+    private boolean isCached(String folder, String path) {
+        synchronized (listings) {
+            return listings.containsKey(getKey(folder, path));
+        }
+    }
+
+    /**
+     * return prefetched listing for folder and path (parent entry first), or null if none is available
+     */
+    public @Nullable List<FileInfo> getListing(String folder, String path) {
+        Listing listing;
+        synchronized (listings) {
+            listing = listings.get(getKey(folder, path));
+        }
+        if (listing == null) {
+            return null;
+        }
+        List<FileInfo> list = Lists.newArrayListWithCapacity(listing.parents.size() + listing.entries.size());
+        list.addAll(listing.parents);
+        for (FileEntry entry : listing.entries) {
+            list.add(entry.toFileInfo());
+        }
+        return list;
+    }
+
+    public void prefetch(final String folder, final List<String> paths, final Comparator<FileInfo> ordering) {
+        final int currentGeneration = generation.incrementAndGet();
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (String path : paths) {
+                    if (generation.get() != currentGeneration) {
+                        Log.d("ListingPrefetcher", "prefetch cancelled");
+                        return;
+                    }
+                    if (!isCached(folder, path)) {
+                        try {
+                            prefetchPath(folder, path, ordering, currentGeneration);
+                        } catch (Exception ex) {
+                            Log.w("ListingPrefetcher", "error prefetching path = '" + path + "'", ex);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private void prefetchPath(String folder, String path, Comparator<FileInfo> ordering, int currentGeneration) {
+        String key = getKey(folder, path);
+        synchronized (listings) {
+            inFlightKey = key;
+            inFlightInvalidated = false;
+        }
+        if (indexBrowser == null || !equal(indexBrowser.getFolder(), folder)) {
+            closeIndexBrowser();
+            indexBrowser = indexHandler.newIndexBrowserBuilder()
+                    .setOrdering(ordering)
+                    .includeParentInList(true).allowParentInRoot(true)
+                    .setFolder(folder)
+                    .buildToNearestPath(path);
+        } else {
+            indexBrowser.setOrdering(ordering);
+            indexBrowser.navigateToNearestPath(path);
+        }
+        if (!equal(indexBrowser.getCurrentPath(), path)) {
+            return;
+        }
+        indexBrowser.waitForCacheReady();
+        List<FileInfo> list = indexBrowser.listFiles();
+        if (list.size() > MAX_CACHED_ENTRIES / 4) {
+            Log.d("ListingPrefetcher", "skip listing for path = '" + path + "', too large (" + list.size() + " records)");
+            return;
+        }
+        Listing listing = new Listing(list);
+        synchronized (listings) {
+            inFlightKey = null;
+            if (generation.get() != currentGeneration || inFlightInvalidated) {
+                Log.d("ListingPrefetcher", "discard listing for path = '" + path + "', cancelled or invalidated while loading");
+                return;
+            }
+            Listing previous = listings.put(key, listing);
+            cachedEntries += listing.size() - (previous == null ? 0 : previous.size());
+            Iterator<Map.Entry<String, Listing>> iterator = listings.entrySet().iterator();
+            while (cachedEntries > MAX_CACHED_ENTRIES && iterator.hasNext()) {
+                cachedEntries -= iterator.next().getValue().size();
+                iterator.remove();
+            }
+        }
+        Log.d("ListingPrefetcher", "prefetched path = '" + path + "', " + listing.size() + " records");
+    }
+
+    private void closeIndexBrowser() {
+        if (indexBrowser != null) {
+            indexBrowser.close();
+            indexBrowser = null;
+        }
+    }
+
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * drop prefetched listings of the directories that contain records (to be called when index records are
+     * received for folder); a listing of one of those directories that is loading is discarded too
+     */
+    public void invalidate(String folder, Collection<FileInfo> records) {
+        Set<String> keys = Sets.newHashSet();
+        for (FileInfo fileInfo : records) {
+            keys.add(getKey(folder, fileInfo.getParent()));
+        }
+        synchronized (listings) {
+            for (String key : keys) {
+                Listing listing = listings.remove(key);
+                if (listing != null) {
+                    cachedEntries -= listing.size();
+                }
+            }
+            if (inFlightKey != null && keys.contains(inFlightKey)) {
+                inFlightInvalidated = true;
+            }
+        }
+    }
+
+    /**
+     * drop all prefetched listings (to be called when ordering changes)
+     */
+    public void clear() {
+        cancel();
+        synchronized (listings) {
+            listings.clear();
+            cachedEntries = 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        clear();
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                closeIndexBrowser();
+            }
+        });
+        executorService.shutdown();
+    }
+
+    private static class Listing {
+        private final List<FileInfo> parents = Lists.newArrayListWithCapacity(1);
+        private final List<FileEntry> entries;
+
+        private Listing(List<FileInfo> list) {
+            entries = Lists.newArrayListWithCapacity(list.size());
+            for (FileInfo fileInfo : list) {
+                if (PathUtils.isParent(fileInfo.getPath())) {
+                    parents.add(fileInfo);
+                } else {
+                    entries.add(new FileEntry(fileInfo, true));
+                }
+            }
+        }
+
+        private int size() {
+            return parents.size() + entries.size();
+        }
+    }
+}
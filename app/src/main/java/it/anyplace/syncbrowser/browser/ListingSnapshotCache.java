@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.browser;
+
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+import it.anyplace.sync.core.beans.FileInfo;
+import it.anyplace.sync.core.beans.FolderInfo;
+import it.anyplace.sync.core.beans.FolderStats;
+import it.anyplace.sync.core.utils.PathUtils;
+import it.anyplace.syncbrowser.search.FileEntry;
+
+import static com.google.common.base.Objects.equal;
+
+/**
+ * on-disk snapshots of directory listings for recently visited paths (and of the folder list), used to
+ * render a directory while the index browser cache is still loading, or while the client is starting.
+ */
+public class ListingSnapshotCache implements Closeable {
+
+    private final static int FORMAT_VERSION = 2;
+    private final static int MAX_SNAPSHOTS = 64;
+    private final static int MAX_SNAPSHOT_ENTRIES = 5000;
+    private final static String FOLDERS_SNAPSHOT_FILE = "folders";
+
+    private final File directory;
+    private final Gson gson = new Gson();
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+
+    public ListingSnapshotCache(File directory) {
+        this.directory = directory;
+    }
+
+    private File getSnapshotFile(String folder, String path) {
+        return new File(directory, Hashing.sha1().hashString(folder + ":" + path, Charsets.UTF_8).toString());
+    }
+
+    /**
+     * return snapshot listing for folder and path (sorted with ordering, parent entry first), or null if
+     * none is available. Blocking, do not call from ui thread.
+     */
+    public @Nullable List<FileInfo> load(String folder, String path, Comparator<FileInfo> ordering) {
+        File file = getSnapshotFile(folder, path);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))), Charsets.UTF_8)) {
+            Snapshot snapshot = gson.fromJson(reader, Snapshot.class);
+            if (snapshot == null || snapshot.formatVersion != FORMAT_VERSION
+                    || !equal(snapshot.folder, folder) || !equal(snapshot.path, path) || snapshot.parents == null || snapshot.entries == null) {
+                Log.d("ListingSnapshotCache", "discarding stale snapshot for " + folder + ":" + path);
+                FileUtils.deleteQuietly(file);
+                return null;
+            }
+            List<FileInfo> list = Lists.newArrayListWithCapacity(snapshot.parents.length + snapshot.entries.length);
+            list.addAll(Arrays.asList(snapshot.parents));
+            for (FileEntry entry : snapshot.entries) {
+                list.add(entry.toFileInfo());
+            }
+            Collections.sort(list.subList(snapshot.parents.length, list.size()), ordering);
+            file.setLastModified(System.currentTimeMillis());
+            Log.d("ListingSnapshotCache", "loaded snapshot for " + folder + ":" + path + ", " + list.size() + " records");
+            return list;
+        } catch (Exception ex) {
+            Log.w("ListingSnapshotCache", "error reading snapshot for " + folder + ":" + path, ex);
+            FileUtils.deleteQuietly(file);
+            return null;
+        }
+    }
+
+    /**
+     * store snapshot for folder and path, asynchronously
+     */
+    public void saveLater(final String folder, final String path, List<FileInfo> list) {
+        if (list.size() > MAX_SNAPSHOT_ENTRIES) {
+            return;
+        }
+        final Snapshot snapshot = new Snapshot();
+        snapshot.folder = folder;
+        snapshot.path = path;
+        List<FileInfo> parents = Lists.newArrayList();
+        List<FileEntry> entries = Lists.newArrayListWithCapacity(list.size());
+        for (FileInfo fileInfo : list) {
+            if (PathUtils.isParent(fileInfo.getPath())) {
+                parents.add(fileInfo);
+            } else {
+                entries.add(new FileEntry(fileInfo, true));
+            }
+        }
+        snapshot.parents = parents.toArray(new FileInfo[parents.size()]);
+        snapshot.entries = entries.toArray(new FileEntry[entries.size()]);
+        writeExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                File file = getSnapshotFile(folder, path);
+                File tempFile = new File(directory, file.getName() + ".tmp");
+                try {
+                    FileUtils.forceMkdir(directory);
+                    try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))), Charsets.UTF_8)) {
+                        gson.toJson(snapshot, writer);
+                    }
+                    if (!tempFile.renameTo(file)) {
+                        FileUtils.deleteQuietly(tempFile);
+                    }
+                    evictOldSnapshots();
+                } catch (Exception ex) {
+                    Log.w("ListingSnapshotCache", "error writing snapshot for " + folder + ":" + path, ex);
+                    FileUtils.deleteQuietly(tempFile);
+                }
+            }
+        });
+    }
+
+    /**
+     * return snapshot of folder list, or null if none is available. Blocking, do not call from ui thread.
+     */
+    public @Nullable List<Pair<FolderInfo, FolderStats>> loadFolders() {
+        File file = new File(directory, FOLDERS_SNAPSHOT_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))), Charsets.UTF_8)) {
+            FoldersSnapshot snapshot = gson.fromJson(reader, FoldersSnapshot.class);
+            if (snapshot == null || snapshot.formatVersion != FORMAT_VERSION || snapshot.folders == null) {
+                FileUtils.deleteQuietly(file);
+                return null;
+            }
+            List<Pair<FolderInfo, FolderStats>> list = Lists.newArrayList();
+            for (FolderEntry entry : snapshot.folders) {
+                list.add(Pair.of(entry.folderInfo, entry.folderStats));
+            }
+            return list;
+        } catch (Exception ex) {
+            Log.w("ListingSnapshotCache", "error reading folders snapshot", ex);
+            FileUtils.deleteQuietly(file);
+            return null;
+        }
+    }
+
+    /**
+     * store snapshot of folder list, asynchronously
+     */
+    public void saveFoldersLater(List<Pair<FolderInfo, FolderStats>> list) {
+        final FoldersSnapshot snapshot = new FoldersSnapshot();
+        snapshot.folders = new FolderEntry[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            snapshot.folders[i] = new FolderEntry(list.get(i).getLeft(), list.get(i).getRight());
+        }
+        writeExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(directory, FOLDERS_SNAPSHOT_FILE);
+                File tempFile = new File(directory, file.getName() + ".tmp");
+                try {
+                    FileUtils.forceMkdir(directory);
+                    try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))), Charsets.UTF_8)) {
+                        gson.toJson(snapshot, writer);
+                    }
+                    if (!tempFile.renameTo(file)) {
+                        FileUtils.deleteQuietly(tempFile);
+                    }
+                } catch (Exception ex) {
+                    Log.w("ListingSnapshotCache", "error writing folders snapshot", ex);
+                    FileUtils.deleteQuietly(tempFile);
+                }
+            }
+        });
+    }
+
+    private void evictOldSnapshots() {
+        File[] files = directory.listFiles();
+        if (files != null && files.length > MAX_SNAPSHOTS) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(b.lastModified(), a.lastModified());
+                }
+            });
+            for (File file : Arrays.asList(files).subList(MAX_SNAPSHOTS, files.length)) {
+                if (!equal(file.getName(), FOLDERS_SNAPSHOT_FILE)) {
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        writeExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                FileUtils.deleteQuietly(directory);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        writeExecutor.shutdown();
+    }
+
+    private static class Snapshot {
+        private int formatVersion = FORMAT_VERSION;
+        private String folder, path;
+        private FileInfo[] parents;
+        private FileEntry[] entries;
+    }
+
+    private static class FoldersSnapshot {
+        private int formatVersion = FORMAT_VERSION;
+        private FolderEntry[] folders;
+    }
+
+    private static class FolderEntry {
+        private final FolderInfo folderInfo;
+        private final FolderStats folderStats;
+
+        private FolderEntry(FolderInfo folderInfo, FolderStats folderStats) {
+            this.folderInfo = folderInfo;
+            this.folderStats = folderStats;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.browser;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.media.ThumbnailUtils;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.webkit.MimeTypeMap;
+import android.widget.ImageView;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import it.anyplace.sync.bep.BlockPuller;
+import it.anyplace.sync.client.SyncthingClient;
+import it.anyplace.sync.core.beans.FileInfo;
+import it.anyplace.syncbrowser.transfer.DownloadFileWriter;
+import it.anyplace.syncbrowser.transfer.FileCache;
+import it.anyplace.syncbrowser.transfer.LocalContentIndex;
+
+import static com.google.common.base.Objects.equal;
+import static com.google.common.base.Strings.nullToEmpty;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * loads thumbnails of image and video files for list rows, on a small background pool. Thumbnails are
+ * cached in memory and on disk (both lru), keyed by file content hash. Sources, in order: embedded exif
+ * thumbnail or frame of a local copy of the file (pulled before, or cached), or a pull of the whole file
+ * for small images on unmetered networks. Remote pulls run one at a time, within a total byte budget per
+ * loader, into a scratch file that is deleted once decoded (never into the file cache). Binding a recycled
+ * row cancels the load for its previous file.
+ */
+public class ThumbnailLoader implements Closeable {
+
+    private final static int THREADS = 2;
+    private final static long MAX_REMOTE_SOURCE_SIZE = 2 * 1024 * 1024;
+    private final static long MAX_REMOTE_SOURCE_TOTAL_SIZE = 32 * 1024 * 1024;
+    private final static long REMOTE_PULL_TIMEOUT_MILLIS = 30 * 1000;
+    private final static long MAX_DISK_CACHE_SIZE = 32 * 1024 * 1024;
+
+    private final Context context;
+    private final SyncthingClient syncthingClient;
+    private final FileCache fileCache;
+    private final LocalContentIndex localContentIndex;
+    private final File cacheDirectory, scratchDirectory;
+    private final int thumbnailSize;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executorService = Executors.newFixedThreadPool(THREADS,
+            new ThreadFactoryBuilder().setNameFormat("ThumbnailLoader-%d").setDaemon(true).build());
+    private final LruCache<String, Bitmap> memoryCache = new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / 1024 / 16)) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getByteCount() / 1024;
+        }
+    };
+    private final Map<ImageView, Future> tasks = new WeakHashMap<>();
+    private final Semaphore remotePullPermit = new Semaphore(1);
+    private final AtomicLong remotePulledSize = new AtomicLong(0);
+    private long diskCacheSize = -1;
+
+    public ThumbnailLoader(Context context, SyncthingClient syncthingClient, FileCache fileCache, LocalContentIndex localContentIndex) {
+        this.context = context.getApplicationContext();
+        this.syncthingClient = syncthingClient;
+        this.fileCache = fileCache;
+        this.localContentIndex = localContentIndex;
+        this.cacheDirectory = new File(context.getExternalCacheDir(), "thumbnails");
+        this.scratchDirectory = new File(context.getExternalCacheDir(), "thumbnail_sources");
+        this.thumbnailSize = (int) (48 * context.getResources().getDisplayMetrics().density);
+    }
+
+    private static @Nullable String getMimeType(FileInfo fileInfo) {
+        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(FilenameUtils.getExtension(fileInfo.getFileName()).toLowerCase());
+    }
+
+    private static boolean isImage(FileInfo fileInfo) {
+        return nullToEmpty(getMimeType(fileInfo)).startsWith("image/");
+    }
+
+    private static boolean isVideo(FileInfo fileInfo) {
+        return nullToEmpty(getMimeType(fileInfo)).startsWith("video/");
+    }
+
+    /**
+     * bind thumbnail of fileInfo to imageView (ui thread); iconView is displayed instead while no thumbnail
+     * is available
+     */
+    public void bind(final ImageView imageView, final View iconView, final FileInfo fileInfo) {
+        cancel(imageView);
+        imageView.setVisibility(View.GONE);
+        iconView.setVisibility(View.VISIBLE);
+        if (!fileInfo.isFile() || isBlank(fileInfo.getHash()) || !(isImage(fileInfo) || isVideo(fileInfo))) {
+            imageView.setTag(null);
+            return;
+        }
+        final String key = fileInfo.getHash();
+        imageView.setTag(key);
+        Bitmap bitmap = memoryCache.get(key);
+        if (bitmap != null) {
+            showThumbnail(imageView, iconView, bitmap);
+            return;
+        }
+        tasks.put(imageView, executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                final Bitmap bitmap = loadThumbnail(key, fileInfo);
+                if (bitmap != null && !Thread.currentThread().isInterrupted()) {
+                    memoryCache.put(key, bitmap);
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (equal(imageView.getTag(), key)) {
+                                tasks.remove(imageView);
+                                showThumbnail(imageView, iconView, bitmap);
+                            }
+                        }
+                    });
+                }
+            }
+        }));
+    }
+
+    /**
+     * cancel thumbnail load for imageView, if any (ie when its row is recycled)
+     */
+    public void cancel(ImageView imageView) {
+        Future future = tasks.remove(imageView);
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+
+    private static void showThumbnail(ImageView imageView, View iconView, Bitmap bitmap) {
+        imageView.setImageBitmap(bitmap);
+        imageView.setVisibility(View.VISIBLE);
+        iconView.setVisibility(View.INVISIBLE);
+    }
+
+    private File getDiskCacheFile(String key) {
+        return new File(cacheDirectory, Hashing.sha1().hashString(key, Charsets.UTF_8).toString() + ".jpg");
+    }
+
+    private @Nullable Bitmap loadThumbnail(String key, FileInfo fileInfo) {
+        File diskCacheFile = getDiskCacheFile(key);
+        if (diskCacheFile.isFile()) {
+            diskCacheFile.setLastModified(System.currentTimeMillis());
+            Bitmap bitmap = BitmapFactory.decodeFile(diskCacheFile.getAbsolutePath());
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        Bitmap bitmap = null;
+        try {
+            File localFile = fileCache.peek(fileInfo);
+            if (localFile == null) {
+                localFile = localContentIndex.find(fileInfo);
+            }
+            if (localFile != null) {
+                bitmap = isVideo(fileInfo) ? createVideoThumbnail(localFile) : createImageThumbnail(localFile);
+            } else if (isImage(fileInfo) && fileInfo.getSize() <= MAX_REMOTE_SOURCE_SIZE && !isNetworkMetered()
+                    && remotePulledSize.get() + fileInfo.getSize() <= MAX_REMOTE_SOURCE_TOTAL_SIZE) {
+                if (remotePullPermit.tryAcquire()) {
+                    try {
+                        bitmap = createRemoteImageThumbnail(fileInfo);
+                    } finally {
+                        remotePullPermit.release();
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            return null;
+        } catch (Exception ex) {
+            Log.w("ThumbnailLoader", "error creating thumbnail for file " + fileInfo.getPath(), ex);
+        }
+        if (bitmap != null) {
+            storeInDiskCache(diskCacheFile, bitmap);
+        }
+        return bitmap;
+    }
+
+    private @Nullable Bitmap createImageThumbnail(File file) throws Exception {
+        byte[] exifThumbnail = new ExifInterface(file.getAbsolutePath()).getThumbnail();
+        if (exifThumbnail != null) {
+            Bitmap bitmap = decodeSampled(exifThumbnail);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        options.inSampleSize = getSampleSize(options);
+        options.inJustDecodeBounds = false;
+        return extractThumbnail(BitmapFactory.decodeFile(file.getAbsolutePath(), options));
+    }
+
+    private @Nullable Bitmap createVideoThumbnail(File file) {
+        return extractThumbnail(ThumbnailUtils.createVideoThumbnail(file.getAbsolutePath(), MediaStore.Images.Thumbnails.MINI_KIND));
+    }
+
+    /**
+     * pull file into a scratch file, create thumbnail from it and delete it; the pull is interrupted if it
+     * does not complete within {@link #REMOTE_PULL_TIMEOUT_MILLIS}
+     */
+    private @Nullable Bitmap createRemoteImageThumbnail(FileInfo fileInfo) throws Exception {
+        Log.d("ThumbnailLoader", "pull file " + fileInfo.getPath() + " for thumbnail");
+        remotePulledSize.addAndGet(fileInfo.getSize());
+        FileUtils.forceMkdir(scratchDirectory);
+        File file = File.createTempFile("source", "." + FilenameUtils.getExtension(fileInfo.getFileName()), scratchDirectory);
+        final Thread thread = Thread.currentThread();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                if (!done.get()) {
+                    Log.w("ThumbnailLoader", "thumbnail source pull timed out");
+                    thread.interrupt();
+                }
+            }
+        };
+        handler.postDelayed(timeout, REMOTE_PULL_TIMEOUT_MILLIS);
+        try {
+            try (BlockPuller.FileDownloadObserver fileDownloadObserver = syncthingClient.pullFile(fileInfo.getFolder(), fileInfo.getPath())) {
+                while (!fileDownloadObserver.isCompleted()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException();
+                    }
+                    fileDownloadObserver.waitForProgressUpdate();
+                }
+                DownloadFileWriter.writeToFile(fileDownloadObserver.getInputStream(), file, fileInfo.getSize());
+            } finally {
+                done.set(true);
+                handler.removeCallbacks(timeout);
+            }
+            return createImageThumbnail(file);
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    private @Nullable Bitmap decodeSampled(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inSampleSize = getSampleSize(options);
+        options.inJustDecodeBounds = false;
+        return extractThumbnail(BitmapFactory.decodeByteArray(data, 0, data.length, options));
+    }
+
+    private int getSampleSize(BitmapFactory.Options options) {
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= thumbnailSize && options.outHeight / (sampleSize * 2) >= thumbnailSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private @Nullable Bitmap extractThumbnail(@Nullable Bitmap bitmap) {
+        return bitmap == null ? null : ThumbnailUtils.extractThumbnail(bitmap, thumbnailSize, thumbnailSize, ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+    }
+
+    private boolean isNetworkMetered() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connectivityManager == null || connectivityManager.isActiveNetworkMetered();
+    }
+
+    private void storeInDiskCache(File file, Bitmap bitmap) {
+        File tempFile = new File(cacheDirectory, file.getName() + ".tmp");
+        try {
+            FileUtils.forceMkdir(cacheDirectory);
+            try (OutputStream outputStream = new FileOutputStream(tempFile)) {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 80, outputStream);
+            }
+            if (tempFile.renameTo(file)) {
+                addToDiskCacheSize(file.length());
+            } else {
+                FileUtils.deleteQuietly(tempFile);
+            }
+        } catch (Exception ex) {
+            Log.w("ThumbnailLoader", "error storing thumbnail", ex);
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    private static long getTotalSize(File[] files) {
+        long totalSize = 0;
+        for (File file : files) {
+            totalSize += file.length();
+        }
+        return totalSize;
+    }
+
+    /**
+     * track disk cache size (the directory is listed only once, and again on eviction), and evict least
+     * recently used thumbnails when over limit
+     */
+    private synchronized void addToDiskCacheSize(long size) {
+        if (diskCacheSize < 0) {
+            File[] files = cacheDirectory.listFiles();
+            diskCacheSize = files == null ? 0 : getTotalSize(files);
+        } else {
+            diskCacheSize += size;
+        }
+        if (diskCacheSize > MAX_DISK_CACHE_SIZE) {
+            File[] files = cacheDirectory.listFiles();
+            if (files == null) {
+                diskCacheSize = 0;
+                return;
+            }
+            diskCacheSize = getTotalSize(files);
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            // evict down to 3/4 of the limit, so that eviction does not run again on the next store
+            for (File file : files) {
+                if (diskCacheSize <= MAX_DISK_CACHE_SIZE * 3 / 4) {
+                    break;
+                }
+                diskCacheSize -= file.length();
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executorService.shutdownNow();
+        memoryCache.evictAll();
+    }
+}
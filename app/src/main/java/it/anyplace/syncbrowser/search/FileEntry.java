@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.search;
+
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.Comparator;
+import java.util.Date;
+
+import javax.annotation.Nullable;
+
+import it.anyplace.sync.core.beans.FileInfo;
+import it.anyplace.sync.core.utils.FileInfoOrdering;
+import it.anyplace.sync.core.utils.PathUtils;
+
+/**
+ * compact projection of a {@link FileInfo}, for lists that span whole folders (search index and results,
+ * cached directory listings): folder and parent path strings are interned, so that they are shared by all
+ * entries of a directory, size and last modified time are primitives, and no version list or other record
+ * data is retained. The full record can be loaded from the index by folder and path when needed.
+ */
+public class FileEntry {
+
+    private final static Interner<String> interner = Interners.newWeakInterner();
+
+    private final String folder, parent, fileName;
+    private final @Nullable String hash;
+    private final long size, lastModified;
+    private final boolean directory;
+
+    public FileEntry(FileInfo fileInfo) {
+        this(fileInfo, false);
+    }
+
+    /**
+     * if keepHash is true, the content hash is retained too, so that {@link #toFileInfo()} returns a record
+     * that can be used to open the file (cached listings); search entries do not need it
+     */
+    public FileEntry(FileInfo fileInfo, boolean keepHash) {
+        this.folder = interner.intern(fileInfo.getFolder());
+        this.parent = interner.intern(fileInfo.getParent());
+        this.fileName = fileInfo.getFileName();
+        this.directory = fileInfo.isDirectory();
+        this.hash = keepHash && !directory ? fileInfo.getHash() : null;
+        this.size = directory || fileInfo.getSize() == null ? 0 : fileInfo.getSize();
+        this.lastModified = fileInfo.getLastModified() == null ? 0 : fileInfo.getLastModified().getTime();
+    }
+
+    static String intern(String text) {
+        return interner.intern(text);
+    }
+
+    public String getFolder() {
+        return folder;
+    }
+
+    public String getParent() {
+        return parent;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getPath() {
+        return PathUtils.buildPath(parent, fileName);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * rebuild a record with the retained data (no version list), for display and navigation
+     */
+    public FileInfo toFileInfo() {
+        FileInfo.Builder builder = FileInfo.newBuilder()
+                .setFolder(folder)
+                .setPath(getPath())
+                .setLastModified(new Date(lastModified));
+        if (directory) {
+            builder.setTypeDir();
+        } else {
+            builder.setTypeFile().setSize(size).setHash(hash);
+        }
+        return builder.build();
+    }
+
+    /**
+     * return a comparator equivalent to the given {@link FileInfoOrdering} ordering
+     */
+    public static Comparator<FileEntry> getOrdering(Comparator<FileInfo> ordering) {
+        if (ordering == FileInfoOrdering.LAST_MOD_DESC) {
+            return new Comparator<FileEntry>() {
+                @Override
+                public int compare(FileEntry a, FileEntry b) {
+                    return ComparisonChain.start()
+                            .compare(b.lastModified, a.lastModified)
+                            .compare(a.fileName, b.fileName)
+                            .result();
+                }
+            };
+        } else {
+            return new Comparator<FileEntry>() {
+                @Override
+                public int compare(FileEntry a, FileEntry b) {
+                    return ComparisonChain.start()
+                            .compareTrueFirst(a.directory, b.directory)
+                            .compare(a.fileName, b.fileName, String.CASE_INSENSITIVE_ORDER)
+                            .result();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.search;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import it.anyplace.sync.core.beans.FileInfo;
+import it.anyplace.sync.core.utils.PathUtils;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+/**
+ * in-memory search index over file names (and paths) of all folders, based on trigram posting lists; short
+ * (1-2 chars) queries fall back to a linear scan of names. Files are held as compact {@link FileEntry}
+ * projections. Removed entries leave a tombstone, and the index is compacted once tombstones are a
+ * significant share of it. Thread safe.
+ */
+public class SearchIndex {
+
+    private final static int MIN_TOMBSTONES_FOR_COMPACTION = 1024;
+
+    private final ExecutorService updateExecutorService = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("SearchIndex-update").setDaemon(true).build());
+    private final AtomicInteger generation = new AtomicInteger(0);
+    private final List<Entry> entries = Lists.newArrayList();
+    private final Map<String, Integer> entryIdByKey = Maps.newHashMap();
+    private final Map<Long, IntList> postingsByTrigram = Maps.newHashMap();
+    private final Set<String> keysUpdatedWhileLoading = Sets.newHashSet();
+    private int entryCount = 0;
+    private volatile long modificationCount = 0;
+    private volatile boolean complete = false;
+
+    private static String getKey(FileInfo fileInfo) {
+        return fileInfo.getFolder() + ":" + fileInfo.getPath();
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+    private static long trigramAt(String text, int index) {
+        return ((long) text.charAt(index) << 32) | ((long) text.charAt(index + 1) << 16) | text.charAt(index + 2);
+    }
+
+    /**
+     * add or update records in background (in order), so that the caller (ie the index event thread) is
+     * not slowed down; updates still pending are discarded by {@link #clear()}
+     */
+    public void updateLater(final Iterable<FileInfo> records) {
+        final int currentGeneration = generation.get();
+        updateExecutorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (generation.get() == currentGeneration) {
+                    update(records);
+                }
+            }
+        });
+    }
+
+    /**
+     * add or update records; deleted records are removed from index
+     */
+    public void update(Iterable<FileInfo> records) {
+        update(records, false);
+    }
+
+    /**
+     * add records listed by {@link SearchIndexLoader}; records already updated by {@link #update} while
+     * loading are skipped, since the listing may be older than the update
+     */
+    void load(Iterable<FileInfo> records) {
+        update(records, true);
+    }
+
+    private void update(Iterable<FileInfo> records, boolean fromLoader) {
+        synchronized (entries) {
+            modificationCount++;
+            for (FileInfo fileInfo : records) {
+                if (PathUtils.isParent(fileInfo.getPath()) || isNullOrEmpty(fileInfo.getPath())) {
+                    continue;
+                }
+                String key = getKey(fileInfo);
+                if (fromLoader) {
+                    if (keysUpdatedWhileLoading.contains(key)) {
+                        continue;
+                    }
+                } else if (!complete) {
+                    keysUpdatedWhileLoading.add(key);
+                }
+                Integer id = entryIdByKey.get(key);
+                if (fileInfo.isDeleted()) {
+                    if (id != null) {
+                        entries.set(id, null);
+                        entryIdByKey.remove(key);
+                        entryCount--;
+                    }
+                } else if (id != null && entries.get(id).name.equals(normalize(fileInfo.getFileName()))) {
+                    entries.set(id, new Entry(fileInfo));
+                } else {
+                    if (id != null) {
+                        entries.set(id, null);
+                        entryCount--;
+                    }
+                    Entry entry = new Entry(fileInfo);
+                    int newId = entries.size();
+                    entries.add(entry);
+                    entryIdByKey.put(key, newId);
+                    entryCount++;
+                    addPostings(entry, newId);
+                }
+            }
+            int tombstones = entries.size() - entryCount;
+            if (tombstones >= MIN_TOMBSTONES_FOR_COMPACTION && tombstones >= entryCount / 4) {
+                compact();
+            }
+        }
+    }
+
+    private void addPostings(Entry entry, int id) {
+        for (int i = 0; i + 3 <= entry.name.length(); i++) {
+            long trigram = trigramAt(entry.name, i);
+            IntList postings = postingsByTrigram.get(trigram);
+            if (postings == null) {
+                postings = new IntList();
+                postingsByTrigram.put(trigram, postings);
+            }
+            postings.addIfLast(id);
+        }
+    }
+
+    /**
+     * drop tombstones, renumbering entries and rebuilding posting lists (called with lock held)
+     */
+    private void compact() {
+        long startTime = System.currentTimeMillis();
+        int tombstones = entries.size() - entryCount;
+        int[] newIds = new int[entries.size()];
+        List<Entry> liveEntries = Lists.newArrayListWithCapacity(entryCount);
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry != null) {
+                newIds[i] = liveEntries.size();
+                liveEntries.add(entry);
+            }
+        }
+        entries.clear();
+        entries.addAll(liveEntries);
+        for (Map.Entry<String, Integer> entry : entryIdByKey.entrySet()) {
+            entry.setValue(newIds[entry.getValue()]);
+        }
+        postingsByTrigram.clear();
+        for (int i = 0; i < entries.size(); i++) {
+            addPostings(entries.get(i), i);
+        }
+        Log.d("SearchIndex", "compacted index, dropped " + tombstones + " tombstones in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        synchronized (entries) {
+            entries.clear();
+            entryIdByKey.clear();
+            postingsByTrigram.clear();
+            keysUpdatedWhileLoading.clear();
+            entryCount = 0;
+            modificationCount++;
+            complete = false;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entryCount;
+        }
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    void setComplete(boolean complete) {
+        synchronized (entries) {
+            this.complete = complete;
+            if (complete) {
+                keysUpdatedWhileLoading.clear();
+            }
+        }
+    }
+
+    /**
+     * search index, results are ranked (exact name match, name prefix, word prefix, substring) and then sorted
+     * with ordering
+     */
+    public SearchResult search(String query, Comparator<FileInfo> ordering) {
+        return search(query, ordering, null, null);
+    }
+
+    /**
+     * search index; if previous result is for a query contained in this one, and the index has not been
+     * modified since, matches are filtered from previous result instead of scanning the index. Throws
+     * {@link OperationCanceledException} if cancellationSignal is cancelled while searching.
+     */
+    public SearchResult search(String query, Comparator<FileInfo> ordering, @Nullable SearchResult previous, @Nullable CancellationSignal cancellationSignal) {
+        final Comparator<FileEntry> entryOrdering = FileEntry.getOrdering(ordering);
+        long startTime = System.currentTimeMillis();
+        String term = normalize(query.trim());
+        final List<Match> matches = Lists.newArrayList();
+        boolean matchPath = term.contains("/");
+        long resultModificationCount;
+        if (previous != null && previous.modificationCount == modificationCount
+                && previous.matchPath == matchPath && term.contains(previous.term)) {
+            Log.d("SearchIndex", "refine previous result for '" + previous.getQuery() + "' (" + previous.getResultCount() + " results)");
+            resultModificationCount = previous.modificationCount;
+            addMatches(previous.entries, term, matchPath, matches, cancellationSignal);
+        } else {
+            synchronized (entries) {
+                resultModificationCount = modificationCount;
+                IntList candidates = null;
+                if (!matchPath && term.length() >= 3) {
+                    for (int i = 0; i + 3 <= term.length(); i++) {
+                        IntList postings = postingsByTrigram.get(trigramAt(term, i));
+                        if (postings == null) {
+                            candidates = new IntList();
+                            break;
+                        } else if (candidates == null || postings.size() < candidates.size()) {
+                            candidates = postings;
+                        }
+                    }
+                }
+                if (candidates == null) {
+                    addMatches(entries, term, matchPath, matches, cancellationSignal);
+                } else {
+                    List<Entry> candidateEntries = Lists.newArrayListWithCapacity(candidates.size());
+                    for (int i = 0; i < candidates.size(); i++) {
+                        candidateEntries.add(entries.get(candidates.get(i)));
+                    }
+                    addMatches(candidateEntries, term, false, matches, cancellationSignal);
+                }
+            }
+        }
+        Collections.sort(matches, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                return ComparisonChain.start()
+                        .compare(a.rank, b.rank)
+                        .compare(a.entry.fileEntry, b.entry.fileEntry, entryOrdering)
+                        .result();
+            }
+        });
+        List<Entry> resultEntries = Lists.newArrayListWithCapacity(matches.size());
+        for (Match match : matches) {
+            resultEntries.add(match.entry);
+        }
+        Log.d("SearchIndex", "search for '" + query + "' returned " + resultEntries.size() + " results in " + (System.currentTimeMillis() - startTime) + "ms");
+        return new SearchResult(query, term, matchPath, resultEntries, resultModificationCount, complete);
+    }
+
+    private static void addMatches(List<Entry> entries, String term, boolean matchPath, List<Match> matches, @Nullable CancellationSignal cancellationSignal) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (cancellationSignal != null && i % 1024 == 0) {
+                cancellationSignal.throwIfCanceled();
+            }
+            Entry entry = entries.get(i);
+            if (entry != null && entry.matches(term, matchPath)) {
+                matches.add(new Match(entry, entry.rank(term)));
+            }
+        }
+    }
+
+    private static class Entry {
+        private final FileEntry fileEntry;
+        private final String parent, name;
+
+        private Entry(FileInfo fileInfo) {
+            this.fileEntry = new FileEntry(fileInfo);
+            String parent = normalize(fileEntry.getParent());
+            this.parent = parent.equals(fileEntry.getParent()) ? fileEntry.getParent() : FileEntry.intern(parent);
+            String name = normalize(fileEntry.getFileName());
+            this.name = name.equals(fileEntry.getFileName()) ? fileEntry.getFileName() : name;
+        }
+
+        private boolean matches(String term, boolean matchPath) {
+            return matchPath ? matchesPath(term) : name.contains(term);
+        }
+
+        /**
+         * match term against normalized path (parent + '/' + name), without building the path string
+         */
+        private boolean matchesPath(String term) {
+            if (name.contains(term)) {
+                return true;
+            } else if (parent.equals(PathUtils.ROOT_PATH)) {
+                return false;
+            } else if (parent.contains(term)) {
+                return true;
+            }
+            int pathLength = parent.length() + 1 + name.length();
+            for (int start = Math.max(0, parent.length() + 1 - term.length()); start <= parent.length() && start + term.length() <= pathLength; start++) {
+                int i = 0;
+                while (i < term.length() && pathCharAt(start + i) == term.charAt(i)) {
+                    i++;
+                }
+                if (i == term.length()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private char pathCharAt(int index) {
+            if (index < parent.length()) {
+                return parent.charAt(index);
+            } else if (index == parent.length()) {
+                return '/';
+            } else {
+                return name.charAt(index - parent.length() - 1);
+            }
+        }
+
+        private int rank(String term) {
+            if (name.equals(term)) {
+                return 0;
+            } else if (name.startsWith(term)) {
+                return 1;
+            } else {
+                int index = name.indexOf(term);
+                return index > 0 && !Character.isLetterOrDigit(name.charAt(index - 1)) ? 2 : 3;
+            }
+        }
+    }
+
+    private static class Match {
+        private final Entry entry;
+        private final int rank;
+
+        private Match(Entry entry, int rank) {
+            this.entry = entry;
+            this.rank = rank;
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size = 0;
+
+        private void addIfLast(int value) {
+            if (size > 0 && values[size - 1] == value) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int get(int index) {
+            return values[index];
+        }
+
+        private int size() {
+            return size;
+        }
+    }
+
+    public static class SearchResult {
+        private final String query, term;
+        private final boolean matchPath, complete;
+        private final List<Entry> entries;
+        private final long modificationCount;
+
+        private SearchResult(String query, String term, boolean matchPath, List<Entry> entries, long modificationCount, boolean complete) {
+            this.query = query;
+            this.term = term;
+            this.matchPath = matchPath;
+            this.entries = Collections.unmodifiableList(entries);
+            this.modificationCount = modificationCount;
+            this.complete = complete;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public int getResultCount() {
+            return entries.size();
+        }
+
+        /**
+         * return results, as a view over ranked entries (not copied)
+         */
+        public List<FileEntry> getResults() {
+            return Lists.transform(entries, new Function<Entry, FileEntry>() {
+                @Override
+                public FileEntry apply(Entry entry) {
+                    return entry.fileEntry;
+                }
+            });
+        }
+
+        /**
+         * true if the index was fully loaded when the search was executed
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+}
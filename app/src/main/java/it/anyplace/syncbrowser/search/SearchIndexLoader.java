@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.search;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+
+import java.io.Closeable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import it.anyplace.sync.bep.IndexBrowser;
+import it.anyplace.sync.bep.IndexHandler;
+import it.anyplace.sync.core.beans.FileInfo;
+import it.anyplace.sync.core.utils.FileInfoOrdering;
+import it.anyplace.sync.core.utils.PathUtils;
+
+import static com.google.common.base.Objects.equal;
+
+/**
+ * fills a {@link SearchIndex} by walking the local index of every folder, in background (low priority);
+ * the search index is usable (with partial results) while loading.
+ */
+public class SearchIndexLoader implements Closeable {
+
+    private final IndexHandler indexHandler;
+    private final SearchIndex searchIndex;
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private volatile boolean closed = false, started = false;
+
+    public SearchIndexLoader(IndexHandler indexHandler, SearchIndex searchIndex) {
+        this.indexHandler = indexHandler;
+        this.searchIndex = searchIndex;
+    }
+
+    public synchronized void startLoading(final List<String> folders) {
+        if (started) {
+            return;
+        }
+        started = true;
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long startTime = System.currentTimeMillis();
+                boolean complete = true;
+                for (String folder : folders) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        complete &= loadFolder(folder);
+                    } catch (Exception ex) {
+                        Log.w("SearchIndexLoader", "error loading search index for folder " + folder, ex);
+                        complete = false;
+                    }
+                }
+                if (complete && !closed) {
+                    searchIndex.setComplete(true);
+                    Log.i("SearchIndexLoader", "search index loaded, " + searchIndex.size() + " records in " + (System.currentTimeMillis() - startTime) + "ms");
+                } else {
+                    Log.w("SearchIndexLoader", "search index partially loaded, " + searchIndex.size() + " records in " + (System.currentTimeMillis() - startTime) + "ms");
+                }
+            }
+        });
+    }
+
+    /**
+     * return true if every directory of folder has been visited (false if closed while loading)
+     */
+    private boolean loadFolder(String folder) {
+        IndexBrowser indexBrowser = null;
+        try {
+            LinkedList<String> pathsToVisit = Lists.newLinkedList();
+            pathsToVisit.add(PathUtils.ROOT_PATH);
+            while (!pathsToVisit.isEmpty() && !closed) {
+                String path = pathsToVisit.removeFirst();
+                if (indexBrowser == null) {
+                    indexBrowser = indexHandler.newIndexBrowserBuilder()
+                            .setOrdering(FileInfoOrdering.ALPHA_ASC_DIR_FIRST)
+                            .setFolder(folder)
+                            .buildToNearestPath(path);
+                } else {
+                    indexBrowser.navigateToNearestPath(path);
+                }
+                if (!equal(indexBrowser.getCurrentPath(), path)) {
+                    continue;
+                }
+                indexBrowser.waitForCacheReady();
+                List<FileInfo> list = indexBrowser.listFiles();
+                searchIndex.load(list);
+                for (FileInfo fileInfo : list) {
+                    if (fileInfo.isDirectory() && !PathUtils.isParent(fileInfo.getPath())) {
+                        pathsToVisit.add(fileInfo.getPath());
+                    }
+                }
+            }
+            return pathsToVisit.isEmpty();
+        } finally {
+            if (indexBrowser != null) {
+                indexBrowser.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executorService.shutdown();
+    }
+}
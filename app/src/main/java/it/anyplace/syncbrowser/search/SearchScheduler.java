@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.search;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.Comparator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import it.anyplace.sync.core.beans.FileInfo;
+
+/**
+ * runs searches on a single thread; a new query is debounced, replaces any query still waiting, and cancels
+ * the search in progress. Listener is invoked from the search thread, only for the latest query.
+ */
+public class SearchScheduler implements Closeable {
+
+    private final static long DEBOUNCE_DELAY_MILLIS = 150;
+
+    private final SearchIndex searchIndex;
+    private final Listener listener;
+    private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> pendingSearch;
+    private CancellationSignal runningSearchSignal;
+    private SearchIndex.SearchResult lastResult;
+    private Comparator<FileInfo> lastResultOrdering;
+
+    public SearchScheduler(SearchIndex searchIndex, Listener listener) {
+        this.searchIndex = searchIndex;
+        this.listener = listener;
+    }
+
+    public synchronized void submitSearch(final String query, final Comparator<FileInfo> ordering) {
+        cancel();
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        runningSearchSignal = cancellationSignal;
+        pendingSearch = executorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SearchIndex.SearchResult result = searchIndex.search(query, ordering, getReusableResult(ordering), cancellationSignal);
+                    synchronized (SearchScheduler.this) {
+                        if (cancellationSignal.isCanceled()) {
+                            return;
+                        }
+                        lastResult = result;
+                        lastResultOrdering = ordering;
+                    }
+                    listener.onSearchCompleted(result);
+                } catch (OperationCanceledException ex) {
+                    Log.d("SearchScheduler", "search for '" + query + "' cancelled");
+                }
+            }
+        }, DEBOUNCE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized SearchIndex.SearchResult getReusableResult(Comparator<FileInfo> ordering) {
+        return ordering == lastResultOrdering ? lastResult : null;
+    }
+
+    /**
+     * cancel pending and running searches
+     */
+    public synchronized void cancel() {
+        if (pendingSearch != null) {
+            pendingSearch.cancel(false);
+            pendingSearch = null;
+        }
+        if (runningSearchSignal != null) {
+            runningSearchSignal.cancel();
+            runningSearchSignal = null;
+        }
+    }
+
+    /**
+     * cancel searches and forget last result
+     */
+    public synchronized void reset() {
+        cancel();
+        lastResult = null;
+        lastResultOrdering = null;
+    }
+
+    @Override
+    public void close() {
+        reset();
+        executorService.shutdownNow();
+    }
+
+    public interface Listener {
+
+        void onSearchCompleted(SearchIndex.SearchResult searchResult);
+    }
+}
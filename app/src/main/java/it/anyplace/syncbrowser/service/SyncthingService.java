@@ -0,0 +1,589 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.service;
+
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import it.anyplace.sync.bep.BlockPuller;
+import it.anyplace.sync.client.SyncthingClient;
+import it.anyplace.sync.core.beans.FileInfo;
+import it.anyplace.sync.core.configuration.ConfigurationService;
+import it.anyplace.sync.core.security.KeystoreHandler;
+import it.anyplace.syncbrowser.MainActivity;
+import it.anyplace.syncbrowser.R;
+import it.anyplace.syncbrowser.transfer.CachedFileProvider;
+import it.anyplace.syncbrowser.transfer.ContentMetadataResolver;
+import it.anyplace.syncbrowser.transfer.DownloadFileWriter;
+import it.anyplace.syncbrowser.transfer.DownloadJournal;
+import it.anyplace.syncbrowser.transfer.FileCache;
+import it.anyplace.syncbrowser.transfer.FileDownloader;
+import it.anyplace.syncbrowser.transfer.LocalContentIndex;
+import it.anyplace.syncbrowser.transfer.TransferMetrics;
+import it.anyplace.syncbrowser.transfer.UploadQueue;
+import it.anyplace.syncbrowser.utils.StartupTimer;
+import it.anyplace.syncbrowser.utils.TempDirectoryJanitor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Strings.nullToEmpty;
+import static org.apache.commons.lang3.StringUtils.capitalize;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * owns the syncthing client and runs transfers, independently of the activity lifecycle; activities bind
+ * to it, so that connections, index state and running transfers survive activity recreation. The service
+ * is in foreground while transfers are running, and stops itself once released by the ui and idle.
+ */
+public class SyncthingService extends Service {
+
+    private final static int TRANSFER_NOTIFICATION_ID = 1;
+    private final static long FILE_CACHE_MAX_SIZE = 256 * 1024 * 1024;
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService clientExecutorService = Executors.newSingleThreadExecutor();
+    private final ExecutorService transferExecutorService = Executors.newCachedThreadPool();
+    private final Map<Integer, TransferTask> transferTasks = Maps.newLinkedHashMap();
+    private Future<SyncthingClient> clientFuture;
+    private volatile ConfigurationService configuration;
+    private DownloadJournal downloadJournal;
+    private LocalContentIndex localContentIndex;
+    private FileCache fileCache;
+    private int runningTransfers = 0, nextTransferId = 1;
+    private boolean released = false;
+    private TransferTask.Listener transferListener;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.i("SyncthingService", "onCreate");
+        downloadJournal = new DownloadJournal(new File(getExternalFilesDir(null), "downloads.json"));
+        localContentIndex = new LocalContentIndex(new File(getExternalFilesDir(null), "local_content.json"));
+        fileCache = new FileCache(CachedFileProvider.getDirectory(this), FILE_CACHE_MAX_SIZE);
+        clientFuture = clientExecutorService.submit(new Callable<SyncthingClient>() {
+            @Override
+            public SyncthingClient call() throws Exception {
+                return initClient();
+            }
+        });
+    }
+
+    /**
+     * start the client with only the work it cannot do without; keystore loading (except on first start,
+     * when the device id does not exist yet) and temp cleanup (temp content is only moved aside before
+     * start) run after the client is up, and the configuration dump is only built if debug logging is
+     * enabled.
+     */
+    private SyncthingClient initClient() throws Exception {
+        StartupTimer.phase("client init");
+        configuration = ConfigurationService.newLoader()
+                .setCache(new File(getExternalCacheDir(), "cache"))
+                .setDatabase(new File(getExternalFilesDir(null), "database"))
+                .loadFrom(new File(getExternalFilesDir(null), "config.properties"));
+        configuration.edit().setDeviceName(getDeviceName());
+        StartupTimer.phase("configuration loaded");
+        final TempDirectoryJanitor tempDirectoryJanitor = new TempDirectoryJanitor(configuration.getTemp());
+        tempDirectoryJanitor.moveAside();
+        final boolean firstStart = isBlank(configuration.getDeviceId());
+        if (firstStart) {
+            KeystoreHandler.newLoader().loadAndStore(configuration);
+            StartupTimer.phase("keystore created");
+        }
+        configuration.edit().persistLater();
+        if (Log.isLoggable("SyncthingService", Log.DEBUG)) {
+            Log.d("SyncthingService", "loaded configuration = " + configuration.newWriter().dumpToString());
+            Log.d("SyncthingService", "storage space = " + configuration.getStorageInfo().dumpAvailableSpace());
+        }
+        SyncthingClient syncthingClient = new SyncthingClient(configuration);
+        StartupTimer.phase("client started");
+        clientExecutorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!firstStart) {
+                    try {
+                        KeystoreHandler.newLoader().loadAndStore(configuration);
+                    } catch (Exception ex) {
+                        Log.w("SyncthingService", "error loading keystore", ex);
+                    }
+                }
+                tempDirectoryJanitor.cleanup();
+                StartupTimer.phase("deferred startup tasks completed");
+            }
+        });
+        return syncthingClient;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        synchronized (this) {
+            released = false;
+        }
+        return binder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        synchronized (this) {
+            released = false;
+        }
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        return true;
+    }
+
+    /**
+     * wait for client startup (blocking); throws the startup error, if any
+     */
+    public SyncthingClient awaitClient() throws Exception {
+        try {
+            return clientFuture.get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+    }
+
+    public ConfigurationService getConfiguration() {
+        return configuration;
+    }
+
+    public DownloadJournal getDownloadJournal() {
+        return downloadJournal;
+    }
+
+    public LocalContentIndex getLocalContentIndex() {
+        return localContentIndex;
+    }
+
+    public FileCache getFileCache() {
+        return fileCache;
+    }
+
+    private SyncthingClient getReadyClient() throws Exception {
+        checkArgument(clientFuture.isDone(), "client not ready");
+        return awaitClient();
+    }
+
+    /**
+     * set the listener of transfer updates (ui thread); a finished transfer is kept until acknowledged, so
+     * that an activity recreated while it was running can still deliver its result
+     */
+    public void setTransferListener(@Nullable TransferTask.Listener transferListener) {
+        this.transferListener = transferListener;
+    }
+
+    public List<TransferTask> getTransfers() {
+        return Lists.newArrayList(transferTasks.values());
+    }
+
+    public @Nullable TransferTask getTransfer(int id) {
+        return transferTasks.get(id);
+    }
+
+    public void cancelTransfer(int id) {
+        TransferTask transferTask = transferTasks.get(id);
+        if (transferTask != null) {
+            Log.i("SyncthingService", "cancel transfer " + id + " (" + transferTask.getTitle() + ")");
+            transferTask.cancel();
+            finishTransfer(transferTask);
+        }
+    }
+
+    /**
+     * the result of a finished transfer has been delivered to the user, forget it
+     */
+    public void acknowledgeTransfer(int id) {
+        TransferTask transferTask = transferTasks.get(id);
+        if (transferTask != null && !transferTask.isRunning()) {
+            transferTasks.remove(id);
+        }
+    }
+
+    private TransferTask addTransfer(TransferTask.Type type, String title) {
+        TransferTask transferTask = new TransferTask(nextTransferId++, type, title);
+        transferTasks.put(transferTask.getId(), transferTask);
+        Log.i("SyncthingService", "start transfer " + transferTask.getId() + " (" + title + ")");
+        return transferTask;
+    }
+
+    private void notifyTransferUpdated(TransferTask transferTask) {
+        if (transferListener != null) {
+            transferListener.onTransferUpdated(transferTask);
+        }
+    }
+
+    private void finishTransfer(TransferTask transferTask) {
+        Log.i("SyncthingService", "transfer " + transferTask.getId() + " finished, status = " + transferTask.getStatus());
+        notifyTransferUpdated(transferTask);
+        if (released) {
+            transferTasks.remove(transferTask.getId());
+        }
+    }
+
+    /**
+     * start download of fileInfo to the file cache, or to the downloads directory if it does not fit in the
+     * cache (ui thread, client must be ready); the downloaded file is the result of the returned transfer
+     */
+    public TransferTask startDownload(FileInfo fileInfo) throws Exception {
+        return startDownload(fileInfo, false);
+    }
+
+    /**
+     * start save of fileInfo to the downloads directory, copying it from the file cache if available (ui
+     * thread, client must be ready); the saved file is the result of the returned transfer
+     */
+    public TransferTask startSave(FileInfo fileInfo) throws Exception {
+        return startDownload(fileInfo, true);
+    }
+
+    private static File getDownloadsFile(FileInfo fileInfo) {
+        return new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), fileInfo.getFileName());
+    }
+
+    private TransferTask startDownload(final FileInfo fileInfo, final boolean save) throws Exception {
+        final FileDownloader fileDownloader = new FileDownloader(getReadyClient(), downloadJournal, localContentIndex);
+        final TransferTask transferTask = addTransfer(save ? TransferTask.Type.SAVE : TransferTask.Type.DOWNLOAD,
+                (save ? "saving file " : "downloading file ") + fileInfo.getFileName());
+        final TransferMetrics transferMetrics = new TransferMetrics(fileInfo.getSize(), new TransferMetrics.Listener() {
+            @Override
+            public void onProgress(TransferMetrics transferMetrics) {
+                if (transferTask.isRunning() && transferMetrics.getTransferredBytes() > 0) {
+                    transferTask.updateProgress(transferTask.getTitle() + "\n" + transferMetrics.getProgressMessage(), transferMetrics.getProgressPermille(), 1000);
+                    notifyTransferUpdated(transferTask);
+                }
+            }
+        });
+        final Transfer transfer = beginTransfer();
+        transferTask.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                fileDownloader.cancel();
+                transferMetrics.close();
+            }
+        });
+        transferExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                File cachedFile = fileCache.get(fileInfo), downloadsFile = getDownloadsFile(fileInfo);
+                boolean cacheable = fileCache.accepts(fileInfo);
+                File outputFile = cachedFile != null ? cachedFile : cacheable ? fileCache.getFile(fileInfo) : downloadsFile;
+                Exception error = null;
+                try {
+                    if (cachedFile == null) {
+                        fileDownloader.download(fileInfo, outputFile, new FileDownloader.Listener() {
+                            @Override
+                            public void onProgress(BlockPuller.FileDownloadObserver fileDownloadObserver) {
+                                transferMetrics.update((long) (fileDownloadObserver.getProgress() * fileInfo.getSize()));
+                            }
+                        });
+                        if (cacheable) {
+                            fileCache.put(fileInfo, outputFile);
+                        }
+                        Log.i("SyncthingService", "downloaded file = " + fileInfo.getPath() + " to " + outputFile);
+                    }
+                    if (save && !outputFile.equals(downloadsFile)) {
+                        try (InputStream inputStream = new FileInputStream(outputFile)) {
+                            DownloadFileWriter.writeToFile(inputStream, downloadsFile, outputFile.length());
+                        }
+                        outputFile = downloadsFile;
+                        Log.i("SyncthingService", "saved file = " + fileInfo.getPath() + " to " + outputFile);
+                    }
+                } catch (Exception ex) {
+                    if (!fileDownloader.isCancelled()) {
+                        Log.e("SyncthingService", "file download exception", ex);
+                    }
+                    error = ex;
+                } finally {
+                    transfer.close();
+                }
+                final File resultFile = outputFile;
+                final Exception resultError = error;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        transferMetrics.close();
+                        if (!transferTask.isRunning()) {
+                            return; // cancelled, already finished
+                        }
+                        if (resultError == null) {
+                            transferTask.complete((save ? "saved file " : "downloaded file ") + resultFile.getName()
+                                    + (save ? " to " + resultFile.getParent() : ""), resultFile);
+                        } else {
+                            transferTask.fail(resultError);
+                        }
+                        finishTransfer(transferTask);
+                    }
+                });
+            }
+        });
+        return transferTask;
+    }
+
+    /**
+     * start upload of files to folder:dir (ui thread, client must be ready)
+     */
+    public TransferTask startUpload(final String folder, final String dir, List<ContentMetadataResolver.ContentMetadata> files) throws Exception {
+        SyncthingClient client = getReadyClient();
+        final TransferTask transferTask = addTransfer(TransferTask.Type.UPLOAD, "uploading " + files.size() + " files");
+        final Transfer transfer = beginTransfer();
+        try {
+            startUploadQueue(client, transferTask, transfer, folder, dir, files);
+        } catch (RuntimeException ex) {
+            transfer.close();
+            transferTasks.remove(transferTask.getId());
+            throw ex;
+        }
+        return transferTask;
+    }
+
+    private void startUploadQueue(SyncthingClient client, final TransferTask transferTask, final Transfer transfer,
+                                  final String folder, final String dir, List<ContentMetadataResolver.ContentMetadata> files) {
+        final UploadQueue uploadQueue = new UploadQueue(client, getContentResolver(), UploadQueue.getDefaultConcurrency(this), new UploadQueue.Listener() {
+
+            @Override
+            public void onProgress(final UploadQueue uploadQueue) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (transferTask.isRunning()) {
+                            int done = 0;
+                            for (UploadQueue.Upload upload : uploadQueue.getUploads()) {
+                                if (upload.isDone()) {
+                                    done++;
+                                }
+                            }
+                            transferTask.updateProgress(uploadQueue.getProgressMessage(), done, uploadQueue.getUploads().size());
+                            notifyTransferUpdated(transferTask);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onFileCompleted(UploadQueue.Upload upload) {
+            }
+
+            @Override
+            public void onFileFailed(UploadQueue.Upload upload, Exception ex) {
+            }
+
+            @Override
+            public void onQueueCompleted(final UploadQueue uploadQueue) {
+                transfer.close();
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        uploadQueue.close();
+                        int completed = 0;
+                        List<String> failed = Lists.newArrayList();
+                        for (UploadQueue.Upload upload : uploadQueue.getUploads()) {
+                            if (upload.getStatus() == UploadQueue.UploadStatus.COMPLETED) {
+                                completed++;
+                            } else if (upload.getStatus() == UploadQueue.UploadStatus.FAILED) {
+                                failed.add(upload.getFileName() + ": " + upload.getError());
+                            }
+                        }
+                        Log.i("SyncthingService", "uploaded " + completed + "/" + uploadQueue.getUploads().size() + " files to folder " + folder + ":" + dir);
+                        transferTask.complete("uploaded " + completed + "/" + uploadQueue.getUploads().size() + " files"
+                                + (failed.isEmpty() ? "" : ", error uploading " + Joiner.on(", ").join(failed)), null);
+                        finishTransfer(transferTask);
+                    }
+                });
+            }
+        });
+        for (ContentMetadataResolver.ContentMetadata file : files) {
+            uploadQueue.add(file.getUri(), file.getFileName(), file.getSize(), folder, dir);
+        }
+        transferTask.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                uploadQueue.close();
+                transfer.close();
+            }
+        });
+        uploadQueue.start();
+    }
+
+    /**
+     * mark a transfer as running, until the returned handle is closed; the service is in foreground while
+     * any transfer is running
+     */
+    private Transfer beginTransfer() {
+        synchronized (this) {
+            runningTransfers++;
+            if (runningTransfers == 1) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateForegroundState();
+                    }
+                });
+            }
+        }
+        return new Transfer();
+    }
+
+    private void endTransfer() {
+        synchronized (this) {
+            runningTransfers--;
+            if (runningTransfers == 0) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateForegroundState();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * the ui does not need the client anymore (ie the user left the app); the service stops as soon as
+     * there are no running transfers
+     */
+    public void release() {
+        synchronized (this) {
+            released = true;
+        }
+        Iterator<TransferTask> iterator = transferTasks.values().iterator();
+        while (iterator.hasNext()) {
+            if (!iterator.next().isRunning()) {
+                iterator.remove();
+            }
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                updateForegroundState();
+            }
+        });
+    }
+
+    private synchronized void updateForegroundState() {
+        if (runningTransfers > 0) {
+            Log.d("SyncthingService", runningTransfers + " transfers running, start foreground");
+            PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
+            startForeground(TRANSFER_NOTIFICATION_ID, new NotificationCompat.Builder(this)
+                    .setSmallIcon(R.drawable.ic_launcher)
+                    .setContentTitle(getString(R.string.app_name))
+                    .setContentText(getString(R.string.transfers_in_progress_message))
+                    .setContentIntent(pendingIntent)
+                    .setOngoing(true)
+                    .build());
+        } else {
+            stopForeground(true);
+            if (released) {
+                Log.i("SyncthingService", "released and idle, stop service");
+                stopSelf();
+            }
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.i("SyncthingService", "onDestroy");
+        super.onDestroy();
+        for (TransferTask transferTask : getTransfers()) {
+            transferTask.cancel();
+        }
+        transferExecutorService.shutdownNow();
+        clientExecutorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    awaitClient().close();
+                } catch (Exception ex) {
+                    Log.w("SyncthingService", "error closing client", ex);
+                }
+                if (configuration != null) {
+                    configuration.close();
+                    configuration = null;
+                }
+            }
+        });
+        clientExecutorService.shutdown();
+    }
+
+    private String getDeviceName() {
+        String manufacturer = nullToEmpty(Build.MANUFACTURER);
+        String model = nullToEmpty(Build.MODEL);
+        String deviceName;
+        if (model.startsWith(manufacturer)) {
+            deviceName = capitalize(model);
+        } else {
+            deviceName = capitalize(manufacturer) + " " + model;
+        }
+        if (isBlank(deviceName)) {
+            deviceName = "android";
+        }
+        return deviceName;
+    }
+
+    public class LocalBinder extends Binder {
+
+        public SyncthingService getService() {
+            return SyncthingService.this;
+        }
+    }
+
+    /**
+     * running transfer handle; closing it more than once has no effect
+     */
+    public class Transfer implements Closeable {
+
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        @Override
+        public void close() {
+            if (!closed.getAndSet(true)) {
+                endTransfer();
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.service;
+
+import java.io.File;
+
+import javax.annotation.Nullable;
+
+/**
+ * state of a transfer run by {@link SyncthingService}, identified by an id that a recreated activity can
+ * use to attach to it again; state is updated (and read) on ui thread only.
+ */
+public class TransferTask {
+
+    private final int id;
+    private final Type type;
+    private final String title;
+    private Status status = Status.RUNNING;
+    private String message;
+    private int progress = 0, max = 0;
+    private File resultFile;
+    private Exception error;
+    private Runnable cancelAction;
+
+    TransferTask(int id, Type type, String title) {
+        this.id = id;
+        this.type = type;
+        this.title = title;
+        this.message = title;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isRunning() {
+        return status == Status.RUNNING;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * return progress, out of {@link #getMax()}; max is 0 while progress is unknown
+     */
+    public int getProgress() {
+        return progress;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * return the downloaded (or saved) file, for a completed download
+     */
+    public @Nullable File getResultFile() {
+        return resultFile;
+    }
+
+    public @Nullable Exception getError() {
+        return error;
+    }
+
+    void setCancelAction(Runnable cancelAction) {
+        this.cancelAction = cancelAction;
+    }
+
+    void cancel() {
+        if (isRunning()) {
+            status = Status.CANCELLED;
+            if (cancelAction != null) {
+                cancelAction.run();
+            }
+        }
+    }
+
+    void updateProgress(String message, int progress, int max) {
+        this.message = message;
+        this.progress = progress;
+        this.max = max;
+    }
+
+    void complete(String message, @Nullable File resultFile) {
+        if (isRunning()) {
+            this.message = message;
+            this.resultFile = resultFile;
+            this.status = Status.COMPLETED;
+        }
+    }
+
+    void fail(Exception error) {
+        if (isRunning()) {
+            this.error = error;
+            this.status = Status.FAILED;
+        }
+    }
+
+    /**
+     * DOWNLOAD pulls a file to open it, SAVE pulls a file (or takes it from the file cache) to the shared
+     * downloads directory
+     */
+    public enum Type {
+        DOWNLOAD, SAVE, UPLOAD
+    }
+
+    public enum Status {
+        RUNNING, COMPLETED, FAILED, CANCELLED
+    }
+
+    public interface Listener {
+
+        /**
+         * invoked on ui thread when the state of a transfer changes, including progress (at a fixed rate)
+         */
+        void onTransferUpdated(TransferTask transferTask);
+    }
+}
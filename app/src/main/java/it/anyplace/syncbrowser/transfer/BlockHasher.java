@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import it.anyplace.sync.core.beans.BlockInfo;
+
+/**
+ * hashes local content with the syncthing block layout (sha-256 of each block), to compare it with the
+ * block list of a remote file. Reading and hashing are pipelined: the calling thread reads blocks ahead
+ * into a bounded pool of direct buffers, while blocks are hashed in parallel on a shared pool sized on
+ * the number of cores; results are checked in block order.
+ */
+public class BlockHasher {
+
+    private final static int BLOCK_SIZE = 128 * 1024;
+    private final static int HASHING_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private final static int MAX_BLOCKS_IN_FLIGHT = HASHING_THREADS * 2;
+
+    private final static ExecutorService executorService = Executors.newFixedThreadPool(HASHING_THREADS,
+            new ThreadFactoryBuilder().setNameFormat("BlockHasher-%d").setDaemon(true).build());
+    private final static ThreadLocal<MessageDigest> messageDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    };
+
+    /**
+     * return true if content matches blocks exactly (same block hashes, same length); reading stops at the
+     * first mismatching block.
+     */
+    public static boolean matchesBlocks(InputStream inputStream, List<BlockInfo> blocks) throws IOException {
+        ReadableByteChannel channel = inputStream instanceof FileInputStream ? ((FileInputStream) inputStream).getChannel() : Channels.newChannel(inputStream);
+        final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(MAX_BLOCKS_IN_FLIGHT);
+        int allocatedBuffers = 0;
+        Deque<Future<Boolean>> pending = new ArrayDeque<>();
+        try {
+            for (final BlockInfo block : blocks) {
+                if (pending.size() >= MAX_BLOCKS_IN_FLIGHT && !pending.removeFirst().get()) {
+                    return false;
+                }
+                ByteBuffer buffer = buffers.poll();
+                if (buffer == null && allocatedBuffers < MAX_BLOCKS_IN_FLIGHT) {
+                    buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+                    allocatedBuffers++;
+                } else if (buffer == null) {
+                    // a buffer is released before its future completes, so one is available (or about to be)
+                    // once fewer than MAX_BLOCKS_IN_FLIGHT hashes are pending
+                    buffer = buffers.take();
+                }
+                if (buffer.capacity() < block.getSize()) {
+                    buffer = ByteBuffer.allocateDirect(block.getSize());
+                }
+                buffer.clear();
+                buffer.limit(block.getSize());
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        return false;
+                    }
+                }
+                buffer.flip();
+                final ByteBuffer blockBuffer = buffer;
+                pending.addLast(executorService.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        try {
+                            MessageDigest digest = messageDigest.get();
+                            digest.update(blockBuffer);
+                            return BaseEncoding.base16().encode(digest.digest()).equalsIgnoreCase(block.getHash());
+                        } finally {
+                            buffers.offer(blockBuffer);
+                        }
+                    }
+                }));
+            }
+            while (!pending.isEmpty()) {
+                if (!pending.removeFirst().get()) {
+                    return false;
+                }
+            }
+            return channel.read(ByteBuffer.allocate(1)) < 0;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while hashing blocks");
+        } catch (ExecutionException ex) {
+            throw new IOException("error hashing blocks", ex.getCause());
+        } finally {
+            for (Future<Boolean> future : pending) {
+                future.cancel(false);
+            }
+        }
+    }
+}
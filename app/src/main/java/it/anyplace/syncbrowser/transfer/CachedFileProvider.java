@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Objects.equal;
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * serves pulled files from the file cache to viewer apps, as read only content uris (file uris cannot be
+ * shared since api 24). Only cached files are served (not the cache index), once fully pulled; size and
+ * display name are available through {@link OpenableColumns}.
+ */
+public class CachedFileProvider extends ContentProvider {
+
+    private final static String AUTHORITY = "it.anyplace.syncbrowser.files";
+
+    /**
+     * directory of the file cache, served by this provider
+     */
+    public static File getDirectory(Context context) {
+        return new File(context.getExternalCacheDir(), "files");
+    }
+
+    /**
+     * return content uri for file, that must be within the file cache directory
+     */
+    public static Uri getUri(Context context, File file) throws IOException {
+        String directoryPath = getDirectory(context).getCanonicalPath() + File.separator;
+        String filePath = file.getCanonicalPath();
+        checkArgument(filePath.startsWith(directoryPath), "file %s is not within file cache", file);
+        return new Uri.Builder().scheme("content").authority(AUTHORITY).path(filePath.substring(directoryPath.length())).build();
+    }
+
+    private @Nullable File getFile(Uri uri) {
+        if (uri.getPath() == null) {
+            return null;
+        }
+        try {
+            File directory = getDirectory(getContext()).getCanonicalFile();
+            File file = new File(directory, uri.getPath()).getCanonicalFile();
+            // cached files are stored as <directory>/<key>/<file name>
+            if (file.getParentFile() != null && directory.equals(file.getParentFile().getParentFile()) && file.isFile()) {
+                return file;
+            }
+        } catch (IOException ex) {
+            Log.w("CachedFileProvider", "error resolving uri " + uri, ex);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public @Nullable String getType(Uri uri) {
+        String extension = FilenameUtils.getExtension(uri.getLastPathSegment());
+        return isBlank(extension) ? null : MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension.toLowerCase());
+    }
+
+    @Override
+    public Cursor query(Uri uri, @Nullable String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        File file = getFile(uri);
+        if (projection == null) {
+            projection = new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        if (file != null) {
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                if (OpenableColumns.DISPLAY_NAME.equals(projection[i])) {
+                    row[i] = file.getName();
+                } else if (OpenableColumns.SIZE.equals(projection[i])) {
+                    row[i] = file.length();
+                }
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!equal(mode, "r")) {
+            throw new SecurityException("read only provider, unsupported mode = " + mode);
+        }
+        File file = getFile(uri);
+        if (file == null) {
+            throw new FileNotFoundException("file not found for uri " + uri);
+        }
+        Log.d("CachedFileProvider", "open file = " + file);
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("read only provider");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("read only provider");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("read only provider");
+    }
+}
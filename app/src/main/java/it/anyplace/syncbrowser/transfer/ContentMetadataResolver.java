@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Objects.equal;
+import static com.google.common.base.Strings.emptyToNull;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * resolves name, size and mime type of content uris, in background, with one query per media store
+ * collection (instead of one per uri) where possible. Results are cached per uri.
+ */
+public class ContentMetadataResolver implements Closeable {
+
+    private final static int MAX_IDS_PER_QUERY = 500;
+
+    private final ContentResolver contentResolver;
+    private final Map<Uri, ContentMetadata> cache = Maps.newConcurrentMap();
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private volatile boolean closed = false;
+
+    public ContentMetadataResolver(ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * resolve metadata in background, callback is invoked on ui thread with metadata for each uri, in the
+     * same order as input. Callback is never invoked after {@link #close()} (and requests submitted after
+     * close are ignored).
+     */
+    public void resolveAsync(final List<Uri> uris, final Callback callback) {
+        if (closed) {
+            Log.w("ContentMetadataResolver", "resolver closed, ignore request");
+            return;
+        }
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                final List<ContentMetadata> list = resolve(uris);
+                if (closed) {
+                    return;
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!closed) {
+                            callback.onResolved(list);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * resolve metadata (blocking)
+     */
+    public List<ContentMetadata> resolve(List<Uri> uris) {
+        long startTime = System.currentTimeMillis();
+        ListMultimap<Uri, Uri> mediaStoreUrisByCollection = ArrayListMultimap.create();
+        for (Uri uri : uris) {
+            if (!cache.containsKey(uri)) {
+                Uri collectionUri = getMediaStoreCollectionUri(uri);
+                if (collectionUri == null) {
+                    cache.put(uri, resolveSingle(uri));
+                } else {
+                    mediaStoreUrisByCollection.put(collectionUri, uri);
+                }
+            }
+        }
+        for (Uri collectionUri : mediaStoreUrisByCollection.keySet()) {
+            List<Uri> collectionUris = mediaStoreUrisByCollection.get(collectionUri);
+            for (List<Uri> batch : Lists.partition(collectionUris, MAX_IDS_PER_QUERY)) {
+                resolveMediaStoreBatch(collectionUri, batch);
+            }
+        }
+        List<ContentMetadata> list = Lists.newArrayList();
+        for (Uri uri : uris) {
+            ContentMetadata contentMetadata = cache.get(uri);
+            if (contentMetadata == null) {
+                contentMetadata = resolveSingle(uri);
+                cache.put(uri, contentMetadata);
+            }
+            list.add(contentMetadata);
+        }
+        Log.d("ContentMetadataResolver", "resolved metadata for " + uris.size() + " uris in " + (System.currentTimeMillis() - startTime) + "ms");
+        return list;
+    }
+
+    public @Nullable ContentMetadata getCached(Uri uri) {
+        return cache.get(uri);
+    }
+
+    private static @Nullable Uri getMediaStoreCollectionUri(Uri uri) {
+        if (!equal(uri.getScheme(), ContentResolver.SCHEME_CONTENT) || !equal(uri.getAuthority(), MediaStore.AUTHORITY)) {
+            return null;
+        }
+        try {
+            ContentUris.parseId(uri);
+        } catch (Exception ex) {
+            return null;
+        }
+        List<String> segments = uri.getPathSegments();
+        return uri.buildUpon().path(Joiner.on("/").join(segments.subList(0, segments.size() - 1))).build();
+    }
+
+    private void resolveMediaStoreBatch(Uri collectionUri, List<Uri> uris) {
+        Map<Long, Uri> urisById = Maps.newHashMap();
+        List<String> selectionArgs = Lists.newArrayList();
+        for (Uri uri : uris) {
+            long id = ContentUris.parseId(uri);
+            urisById.put(id, uri);
+            selectionArgs.add(String.valueOf(id));
+        }
+        String selection = MediaStore.MediaColumns._ID + " IN (" + Joiner.on(",").join(Collections.nCopies(selectionArgs.size(), "?")) + ")";
+        try (Cursor cursor = contentResolver.query(collectionUri, new String[]{MediaStore.MediaColumns._ID, MediaStore.MediaColumns.DISPLAY_NAME,
+                MediaStore.MediaColumns.SIZE, MediaStore.MediaColumns.MIME_TYPE, MediaStore.MediaColumns.DATA}, selection, selectionArgs.toArray(new String[selectionArgs.size()]), null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                Uri uri = urisById.get(cursor.getLong(0));
+                if (uri != null) {
+                    String fileName = emptyToNull(cursor.getString(1));
+                    if (fileName == null && !isBlank(cursor.getString(4))) {
+                        fileName = new File(cursor.getString(4)).getName();
+                    }
+                    cache.put(uri, new ContentMetadata(uri, fileName == null ? getFallbackFileName(uri) : fileName,
+                            cursor.isNull(2) ? -1 : cursor.getLong(2), emptyToNull(cursor.getString(3))));
+                }
+            }
+        } catch (Exception ex) {
+            Log.w("ContentMetadataResolver", "unable to query media store collection = " + collectionUri + ", fallback to single queries", ex);
+        }
+    }
+
+    private ContentMetadata resolveSingle(Uri uri) {
+        String fileName = null, mimeType = null;
+        long size = -1;
+        if (equal(uri.getScheme(), ContentResolver.SCHEME_FILE)) {
+            File file = new File(uri.getPath());
+            fileName = file.getName();
+            size = file.length();
+        } else if (equal(uri.getScheme(), ContentResolver.SCHEME_CONTENT)) {
+            try (Cursor cursor = contentResolver.query(uri, new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE}, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    fileName = emptyToNull(cursor.getString(0));
+                    size = cursor.isNull(1) ? -1 : cursor.getLong(1);
+                }
+            } catch (Exception ex) {
+                Log.w("ContentMetadataResolver", "unable to query content metadata for uri = " + uri, ex);
+            }
+            try {
+                mimeType = contentResolver.getType(uri);
+            } catch (Exception ex) {
+                Log.w("ContentMetadataResolver", "unable to get content type for uri = " + uri, ex);
+            }
+        }
+        if (fileName == null) {
+            fileName = getFallbackFileName(uri);
+        }
+        return new ContentMetadata(uri, fileName, size, mimeType);
+    }
+
+    private static String getFallbackFileName(Uri uri) {
+        return new File(uri.getLastPathSegment()).getName();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        handler.removeCallbacksAndMessages(null);
+        executorService.shutdownNow();
+    }
+
+    public static class ContentMetadata {
+        private final Uri uri;
+        private final String fileName, mimeType;
+        private final long size;
+
+        private ContentMetadata(Uri uri, String fileName, long size, @Nullable String mimeType) {
+            this.uri = uri;
+            this.fileName = fileName;
+            this.size = size;
+            this.mimeType = mimeType != null ? mimeType : MimeTypeMap.getSingleton().getMimeTypeFromExtension(FilenameUtils.getExtension(fileName));
+        }
+
+        public Uri getUri() {
+            return uri;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * size in bytes, or -1 if unknown
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public @Nullable String getMimeType() {
+            return mimeType;
+        }
+    }
+
+    public interface Callback {
+
+        void onResolved(List<ContentMetadata> list);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * writes downloaded content to its final location through a pre-allocated sibling '.part' file, which is
+ * renamed in place only once all bytes have been written.
+ */
+public class DownloadFileWriter {
+
+    private final static long TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+    public static File getPartFile(File outputFile) {
+        return new File(outputFile.getParentFile(), "." + outputFile.getName() + ".part");
+    }
+
+    public static void writeToFile(InputStream inputStream, File outputFile, long size) throws IOException {
+        checkArgument(size >= 0);
+        FileUtils.forceMkdir(outputFile.getParentFile());
+        File partFile = getPartFile(outputFile);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(partFile, "rw");
+             FileChannel outputChannel = randomAccessFile.getChannel()) {
+            randomAccessFile.setLength(size);
+            long position = 0;
+            if (inputStream instanceof FileInputStream) {
+                // file to file, let the kernel move the bytes
+                FileChannel inputChannel = ((FileInputStream) inputStream).getChannel();
+                while (position < size) {
+                    long count = outputChannel.transferFrom(inputChannel, position, Math.min(TRANSFER_CHUNK_SIZE, size - position));
+                    if (count <= 0) {
+                        break;
+                    }
+                    position += count;
+                }
+            } else {
+                ReadableByteChannel inputChannel = Channels.newChannel(inputStream);
+                long count;
+                while ((count = outputChannel.transferFrom(inputChannel, position, TRANSFER_CHUNK_SIZE)) > 0) {
+                    position += count;
+                }
+            }
+            if (position != size) {
+                throw new IOException("size mismatch writing file " + outputFile.getName() + ", expected " + size + " bytes, written " + position);
+            }
+            outputChannel.force(false);
+        } catch (IOException ex) {
+            FileUtils.deleteQuietly(partFile);
+            throw ex;
+        }
+        if (!partFile.renameTo(outputFile)) {
+            FileUtils.deleteQuietly(partFile);
+            throw new IOException("unable to move file " + partFile + " to " + outputFile);
+        }
+        Log.d("DownloadFileWriter", "written file = " + outputFile + " (" + size + " bytes)");
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import it.anyplace.sync.core.beans.FileInfo;
+
+/**
+ * persistent journal of downloads, keyed by folder, path and file version; a download that was started
+ * and never completed (cancelled, failed, or app killed) is reported as interrupted until it is either
+ * completed, restarted or discarded. Downloads still running are not reported.
+ */
+public class DownloadJournal {
+
+    private final File file;
+    private final Gson gson = new Gson();
+    private final Map<String, Entry> entries = Maps.newLinkedHashMap();
+
+    public DownloadJournal(File file) {
+        this.file = file;
+        load();
+    }
+
+    private static String getKey(FileInfo fileInfo) {
+        return fileInfo.getFolder() + ":" + fileInfo.getPath();
+    }
+
+    private static String getVersionKey(FileInfo fileInfo) {
+        return fileInfo.getSize() + ":" + fileInfo.getLastModified().getTime();
+    }
+
+    private void load() {
+        if (file.isFile()) {
+            try {
+                List<Entry> list = gson.fromJson(FileUtils.readFileToString(file, Charsets.UTF_8), new TypeToken<List<Entry>>() {
+                }.getType());
+                for (Entry entry : list) {
+                    entry.interrupted = true; // nothing runs before load, downloads left over were killed
+                    entries.put(getKey(entry.fileInfo), entry);
+                }
+            } catch (Exception ex) {
+                Log.w("DownloadJournal", "error loading download journal, discarding it", ex);
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    private void store() {
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            FileUtils.writeStringToFile(tempFile, gson.toJson(Lists.newArrayList(entries.values())), Charsets.UTF_8);
+            if (!tempFile.renameTo(file)) {
+                FileUtils.deleteQuietly(tempFile);
+            }
+        } catch (Exception ex) {
+            Log.w("DownloadJournal", "error storing download journal", ex);
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * record download start; a journal entry for a different version of the same file is replaced
+     */
+    public synchronized void downloadStarted(FileInfo fileInfo) {
+        Entry entry = entries.get(getKey(fileInfo));
+        if (entry == null || !entry.versionKey.equals(getVersionKey(fileInfo))) {
+            entry = new Entry(fileInfo);
+            entries.put(getKey(fileInfo), entry);
+        }
+        entry.attempts++;
+        entry.interrupted = false;
+        entry.lastUpdate = System.currentTimeMillis();
+        store();
+    }
+
+    public synchronized void downloadInterrupted(FileInfo fileInfo, double progress) {
+        Entry entry = entries.get(getKey(fileInfo));
+        if (entry != null && entry.versionKey.equals(getVersionKey(fileInfo))) {
+            entry.progress = Math.max(entry.progress, progress);
+            entry.interrupted = true;
+            entry.lastUpdate = System.currentTimeMillis();
+            store();
+        }
+    }
+
+    public synchronized void downloadCompleted(FileInfo fileInfo) {
+        if (entries.remove(getKey(fileInfo)) != null) {
+            store();
+        }
+    }
+
+    public synchronized void discard(Entry entry) {
+        if (entries.remove(getKey(entry.fileInfo)) != null) {
+            store();
+        }
+    }
+
+    /**
+     * return interrupted downloads (not running), most recent first
+     */
+    public synchronized List<Entry> getInterruptedDownloads() {
+        List<Entry> list = Lists.newArrayList();
+        for (Entry entry : entries.values()) {
+            if (entry.interrupted) {
+                list.add(entry);
+            }
+        }
+        Collections.sort(list, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(b.lastUpdate, a.lastUpdate);
+            }
+        });
+        return list;
+    }
+
+    public static class Entry {
+        private final FileInfo fileInfo;
+        private final String versionKey;
+        private double progress = 0;
+        private int attempts = 0;
+        private boolean interrupted = false;
+        private long lastUpdate = System.currentTimeMillis();
+
+        private Entry(FileInfo fileInfo) {
+            this.fileInfo = fileInfo;
+            this.versionKey = getVersionKey(fileInfo);
+        }
+
+        public FileInfo getFileInfo() {
+            return fileInfo;
+        }
+
+        public double getProgress() {
+            return progress;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+}
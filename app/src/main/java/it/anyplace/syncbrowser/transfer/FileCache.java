@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import it.anyplace.sync.core.beans.FileInfo;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Strings.nullToEmpty;
+
+/**
+ * local cache of pulled files, keyed by folder and path, and valid only for the file version it was pulled
+ * for (size, last modified and content hash of the index record). Total size is bounded, least recently
+ * opened files are evicted first.
+ */
+public class FileCache {
+
+    private final File directory, indexFile;
+    private final long maxSize;
+    private final Gson gson = new Gson();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ExecutorService storeExecutorService = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean storePending = new AtomicBoolean(false);
+
+    public FileCache(File directory, long maxSize) {
+        checkArgument(maxSize > 0);
+        this.directory = directory;
+        this.indexFile = new File(directory, "index.json");
+        this.maxSize = maxSize;
+        load();
+    }
+
+    private static String getKey(FileInfo fileInfo) {
+        return fileInfo.getFolder() + ":" + fileInfo.getPath();
+    }
+
+    private static String getVersionKey(FileInfo fileInfo) {
+        return fileInfo.getSize() + ":" + fileInfo.getLastModified().getTime() + ":" + nullToEmpty(fileInfo.getHash());
+    }
+
+    private void load() {
+        if (indexFile.isFile()) {
+            try {
+                List<Entry> list = gson.fromJson(FileUtils.readFileToString(indexFile, Charsets.UTF_8), new TypeToken<List<Entry>>() {
+                }.getType());
+                for (Entry entry : list) {
+                    entries.put(entry.key, entry);
+                }
+            } catch (Exception ex) {
+                Log.w("FileCache", "error loading file cache index, discarding cache", ex);
+                FileUtils.deleteQuietly(directory);
+            }
+        }
+    }
+
+    /**
+     * store index in background; requests made while a store is pending are coalesced
+     */
+    private void storeLater() {
+        if (!storePending.getAndSet(true)) {
+            storeExecutorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (FileCache.this) {
+                        storePending.set(false);
+                        store();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * delete stale file in background, unless it has been replaced in the meantime (ie pulled again)
+     */
+    private void deleteLater(final File file) {
+        final long lastModified = file.lastModified(), length = file.length();
+        storeExecutorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (file.lastModified() == lastModified && file.length() == length) {
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+        });
+    }
+
+    private void store() {
+        File tempFile = new File(directory, indexFile.getName() + ".tmp");
+        try {
+            FileUtils.writeStringToFile(tempFile, gson.toJson(Lists.newArrayList(entries.values())), Charsets.UTF_8);
+            if (!tempFile.renameTo(indexFile)) {
+                FileUtils.deleteQuietly(tempFile);
+            }
+        } catch (Exception ex) {
+            Log.w("FileCache", "error storing file cache index", ex);
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * return true if fileInfo fits in the cache; larger files are not cached
+     */
+    public boolean accepts(FileInfo fileInfo) {
+        return fileInfo.getSize() != null && fileInfo.getSize() <= maxSize;
+    }
+
+    /**
+     * return the location where fileInfo should be pulled, to be cached
+     */
+    public File getFile(FileInfo fileInfo) {
+        return new File(new File(directory, Hashing.sha1().hashString(getKey(fileInfo), Charsets.UTF_8).toString()), fileInfo.getFileName());
+    }
+
+    /**
+     * return cached file for fileInfo, if available for the same version; does no disk writes (a stale
+     * entry is dropped, and the index stored, in background), so it can be called from ui thread
+     */
+    public synchronized @Nullable File get(FileInfo fileInfo) {
+        Entry entry = entries.get(getKey(fileInfo));
+        if (entry == null) {
+            return null;
+        }
+        File file = new File(entry.path);
+        if (entry.versionKey.equals(getVersionKey(fileInfo)) && file.isFile() && file.length() == entry.size) {
+            storeLater(); // persist access order, for eviction after restart
+            return file;
+        } else {
+            Log.d("FileCache", "cached file for " + entry.key + " is stale, remove it");
+            entries.remove(entry.key);
+            deleteLater(file);
+            storeLater();
+            return null;
+        }
+    }
+
+    /**
+     * return cached file for fileInfo, if available for the same version, without counting it as an access
+     * (for background readers, such as thumbnails, that must not change eviction order)
+     */
+    public synchronized @Nullable File peek(FileInfo fileInfo) {
+        String key = getKey(fileInfo);
+        for (Entry entry : entries.values()) { // no get(), that would move the entry in access order
+            if (entry.key.equals(key)) {
+                File file = new File(entry.path);
+                return entry.versionKey.equals(getVersionKey(fileInfo)) && file.isFile() && file.length() == entry.size ? file : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * register file (pulled at {@link #getFile(FileInfo)}) as cached copy of fileInfo, evicting least
+     * recently used files if over size; a file larger than the cache is refused (and deleted), return
+     * false in that case
+     */
+    public synchronized boolean put(FileInfo fileInfo, File file) {
+        if (file.length() > maxSize) {
+            Log.w("FileCache", "file for " + getKey(fileInfo) + " is larger than the cache, not cached");
+            FileUtils.deleteQuietly(file.getParentFile());
+            return false;
+        }
+        entries.put(getKey(fileInfo), new Entry(getKey(fileInfo), getVersionKey(fileInfo), file.getAbsolutePath(), file.length()));
+        long totalSize = 0;
+        for (Entry entry : entries.values()) {
+            totalSize += entry.size;
+        }
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalSize > maxSize && entries.size() > 1 && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            Log.d("FileCache", "evict cached file for " + entry.key);
+            FileUtils.deleteQuietly(new File(entry.path).getParentFile());
+            totalSize -= entry.size;
+            iterator.remove();
+        }
+        store();
+        return true;
+    }
+
+    private static class Entry {
+        private final String key, versionKey, path;
+        private final long size;
+
+        private Entry(String key, String versionKey, String path, long size) {
+            this.key = key;
+            this.versionKey = versionKey;
+            this.path = path;
+            this.size = size;
+        }
+    }
+}
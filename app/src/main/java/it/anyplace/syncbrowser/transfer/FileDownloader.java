@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import android.util.Log;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import it.anyplace.sync.bep.BlockPuller;
+import it.anyplace.sync.client.SyncthingClient;
+import it.anyplace.sync.core.beans.FileInfo;
+
+/**
+ * pulls a file through the syncthing client and writes it to a local file; a pull that fails or stalls is
+ * restarted, so that the client can pick a new connection (possibly to a different peer). Stalls are
+ * detected by a watchdog, since a silent peer never wakes up the download thread.
+ */
+public class FileDownloader {
+
+    private final static int MAX_ATTEMPTS = 3;
+    private final static long STALL_TIMEOUT_MILLIS = 30 * 1000;
+    private final static long WATCHDOG_INTERVAL_MILLIS = 5 * 1000;
+    private final static ScheduledExecutorService watchdogExecutorService = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("FileDownloader-watchdog").setDaemon(true).build());
+
+    private final SyncthingClient syncthingClient;
+    private final DownloadJournal downloadJournal;
+    private final LocalContentIndex localContentIndex;
+    private volatile boolean cancelled = false;
+    private volatile Thread thread;
+    private volatile double progress = 0;
+    private volatile long lastProgressTime;
+    private volatile boolean stalled = false;
+
+    public FileDownloader(SyncthingClient syncthingClient, DownloadJournal downloadJournal, LocalContentIndex localContentIndex) {
+        this.syncthingClient = syncthingClient;
+        this.downloadJournal = downloadJournal;
+        this.localContentIndex = localContentIndex;
+    }
+
+    public void download(FileInfo fileInfo, File outputFile, Listener listener) throws Exception {
+        File localCopy = localContentIndex.find(fileInfo);
+        if (localCopy != null) {
+            if (localCopy.equals(outputFile)) {
+                Log.i("FileDownloader", "file " + fileInfo.getPath() + " already available as " + outputFile + ", skip download");
+            } else {
+                Log.i("FileDownloader", "file " + fileInfo.getPath() + " content available locally as " + localCopy + ", copy it");
+                try (InputStream inputStream = new FileInputStream(localCopy)) {
+                    DownloadFileWriter.writeToFile(inputStream, outputFile, fileInfo.getSize());
+                }
+                localContentIndex.register(fileInfo, outputFile);
+            }
+            return;
+        }
+        thread = Thread.currentThread();
+        downloadJournal.downloadStarted(fileInfo);
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    downloadOnce(fileInfo, outputFile, listener);
+                    downloadJournal.downloadCompleted(fileInfo);
+                    localContentIndex.register(fileInfo, outputFile);
+                    return;
+                } catch (Exception ex) {
+                    if (cancelled) {
+                        downloadJournal.downloadInterrupted(fileInfo, progress);
+                        throw new CancellationException("download of " + fileInfo.getPath() + " cancelled");
+                    }
+                    if (stalled) {
+                        Thread.interrupted(); // clear interrupt from watchdog before retrying
+                        stalled = false;
+                    }
+                    if (attempt >= MAX_ATTEMPTS) {
+                        downloadJournal.downloadInterrupted(fileInfo, progress);
+                        throw ex;
+                    }
+                    Log.w("FileDownloader", "error downloading file " + fileInfo.getPath() + ", attempt " + attempt + ", retrying", ex);
+                }
+            }
+        } finally {
+            thread = null;
+        }
+    }
+
+    private void downloadOnce(final FileInfo fileInfo, File outputFile, Listener listener) throws Exception {
+        try (final BlockPuller.FileDownloadObserver fileDownloadObserver = syncthingClient.pullFile(fileInfo.getFolder(), fileInfo.getPath())) {
+            lastProgressTime = System.currentTimeMillis();
+            ScheduledFuture watchdog = watchdogExecutorService.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    if (!stalled && System.currentTimeMillis() - lastProgressTime > STALL_TIMEOUT_MILLIS) {
+                        Log.w("FileDownloader", "download of " + fileInfo.getPath() + " stalled at " + fileDownloadObserver.getProgressMessage() + ", abort it");
+                        stalled = true;
+                        Thread thread = FileDownloader.this.thread;
+                        if (thread != null) {
+                            thread.interrupt();
+                        }
+                    }
+                }
+            }, WATCHDOG_INTERVAL_MILLIS, WATCHDOG_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            try {
+                listener.onProgress(fileDownloadObserver);
+                double lastProgress = fileDownloadObserver.getProgress();
+                while (!fileDownloadObserver.isCompleted() && !cancelled && !stalled) {
+                    fileDownloadObserver.waitForProgressUpdate();
+                    Log.d("FileDownloader", "download progress = " + fileDownloadObserver.getProgressMessage());
+                    listener.onProgress(fileDownloadObserver);
+                    if (fileDownloadObserver.getProgress() > lastProgress) {
+                        lastProgress = fileDownloadObserver.getProgress();
+                        progress = Math.max(progress, lastProgress);
+                        lastProgressTime = System.currentTimeMillis();
+                    }
+                }
+            } finally {
+                watchdog.cancel(false);
+            }
+            if (cancelled) {
+                throw new CancellationException("download of " + fileInfo.getPath() + " cancelled");
+            }
+            if (stalled) {
+                throw new IOException("download of " + fileInfo.getPath() + " stalled at " + fileDownloadObserver.getProgressMessage());
+            }
+            DownloadFileWriter.writeToFile(fileDownloadObserver.getInputStream(), outputFile, fileInfo.getSize());
+            Log.i("FileDownloader", "downloaded file = " + fileInfo.getPath());
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+        Thread thread = this.thread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public interface Listener {
+
+        void onProgress(BlockPuller.FileDownloadObserver fileDownloadObserver);
+    }
+}
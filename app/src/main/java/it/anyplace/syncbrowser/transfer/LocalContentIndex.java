@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import it.anyplace.sync.core.beans.FileInfo;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * content addressed index of local copies of downloaded files, keyed by file content hash (as advertised
+ * in the index); lets a download be served from an unmodified local copy of the same content (same file
+ * renamed, or present in another folder) instead of the network. Bounded, lru.
+ */
+public class LocalContentIndex {
+
+    private final static int MAX_ENTRIES = 1000;
+
+    private final File file;
+    private final Gson gson = new Gson();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public LocalContentIndex(File file) {
+        this.file = file;
+        load();
+    }
+
+    private void load() {
+        if (file.isFile()) {
+            try {
+                List<Entry> list = gson.fromJson(FileUtils.readFileToString(file, Charsets.UTF_8), new TypeToken<List<Entry>>() {
+                }.getType());
+                for (Entry entry : list) {
+                    entries.put(entry.hash, entry);
+                }
+            } catch (Exception ex) {
+                Log.w("LocalContentIndex", "error loading local content index, discarding it", ex);
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    private void store() {
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            FileUtils.writeStringToFile(tempFile, gson.toJson(Lists.newArrayList(entries.values())), Charsets.UTF_8);
+            if (!tempFile.renameTo(file)) {
+                FileUtils.deleteQuietly(tempFile);
+            }
+        } catch (Exception ex) {
+            Log.w("LocalContentIndex", "error storing local content index", ex);
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * return an unmodified local copy of the content of fileInfo, if known
+     */
+    public synchronized @Nullable File find(FileInfo fileInfo) {
+        if (isBlank(fileInfo.getHash())) {
+            return null;
+        }
+        Entry entry = entries.get(fileInfo.getHash());
+        if (entry == null) {
+            return null;
+        }
+        File localFile = new File(entry.path);
+        if (localFile.isFile() && localFile.length() == entry.size && localFile.lastModified() == entry.lastModified
+                && entry.size == fileInfo.getSize()) {
+            return localFile;
+        } else {
+            Log.d("LocalContentIndex", "local copy " + entry.path + " missing or modified, remove from index");
+            entries.remove(fileInfo.getHash());
+            store();
+            return null;
+        }
+    }
+
+    /**
+     * register localFile as a copy of fileInfo content
+     */
+    public synchronized void register(FileInfo fileInfo, File localFile) {
+        if (isBlank(fileInfo.getHash()) || !localFile.isFile()) {
+            return;
+        }
+        entries.put(fileInfo.getHash(), new Entry(fileInfo.getHash(), localFile.getAbsolutePath(), localFile.length(), localFile.lastModified()));
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > MAX_ENTRIES && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        store();
+    }
+
+    private static class Entry {
+        private final String hash, path;
+        private final long size, lastModified;
+
+        private Entry(String hash, String path, long size, long lastModified) {
+            this.hash = hash;
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
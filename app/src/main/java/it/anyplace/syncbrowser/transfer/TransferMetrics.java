@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.DateUtils;
+
+import com.google.common.base.Ticker;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * progress of a transfer, with 64 bit byte counters, throughput over a moving window and estimated time
+ * left. Updates are cheap and may come from any thread; if a listener is given, a snapshot is published on
+ * ui thread at a fixed rate (not on every update) until closed.
+ */
+public class TransferMetrics implements Closeable {
+
+    private final static long WINDOW_MILLIS = 10 * 1000;
+    private final static long SAMPLE_INTERVAL_MILLIS = 250;
+    private final static long PUBLISH_INTERVAL_MILLIS = 500;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final @Nullable Listener listener;
+    private final Ticker ticker;
+    private final Runnable publishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+    private final ArrayDeque<long[]> samples = new ArrayDeque<>();
+    private long totalBytes, transferredBytes = 0;
+    private boolean closed = false;
+
+    public TransferMetrics(long totalBytes, @Nullable Listener listener) {
+        this(totalBytes, listener, Ticker.systemTicker());
+    }
+
+    TransferMetrics(long totalBytes, @Nullable Listener listener, Ticker ticker) {
+        this.totalBytes = Math.max(totalBytes, 0);
+        this.listener = listener;
+        this.ticker = ticker;
+        if (listener != null) {
+            handler.postDelayed(publishRunnable, PUBLISH_INTERVAL_MILLIS);
+        }
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+    }
+
+    public synchronized void setTotalBytes(long totalBytes) {
+        this.totalBytes = Math.max(totalBytes, 0);
+    }
+
+    /**
+     * record bytes transferred so far (any thread)
+     */
+    public synchronized void update(long transferredBytes) {
+        this.transferredBytes = transferredBytes;
+        long now = now();
+        if (samples.isEmpty() || now - samples.getLast()[0] >= SAMPLE_INTERVAL_MILLIS) {
+            samples.addLast(new long[]{now, transferredBytes});
+            while (samples.size() > 2 && now - samples.getFirst()[0] > WINDOW_MILLIS) {
+                samples.removeFirst();
+            }
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    /**
+     * return progress in permille (0-1000), that fits progress bars for any file size
+     */
+    public synchronized int getProgressPermille() {
+        return totalBytes == 0 ? 0 : (int) Math.min(1000, transferredBytes * 1000 / totalBytes);
+    }
+
+    /**
+     * return throughput in bytes per second, over the last {@link #WINDOW_MILLIS} up to now (so that it
+     * decays to 0 while the transfer is stalled, even if no update is received)
+     */
+    public synchronized double getThroughput() {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        long now = now();
+        while (samples.size() > 1 && now - samples.getFirst()[0] > WINDOW_MILLIS) {
+            samples.removeFirst();
+        }
+        long[] first = samples.getFirst();
+        return Math.max(0, transferredBytes - first[1]) * 1000d / Math.max(1, now - first[0]);
+    }
+
+    /**
+     * return estimated time left, in millis, or -1 if unknown
+     */
+    public synchronized long getEtaMillis() {
+        double throughput = getThroughput();
+        if (throughput <= 0 || totalBytes == 0) {
+            return -1;
+        }
+        return (long) (Math.max(0, totalBytes - transferredBytes) * 1000d / throughput);
+    }
+
+    public synchronized String getProgressMessage() {
+        StringBuilder message = new StringBuilder(FileUtils.byteCountToDisplaySize(transferredBytes));
+        if (totalBytes > 0) {
+            message.append(" / ").append(FileUtils.byteCountToDisplaySize(totalBytes));
+        }
+        message.append(", ").append(FileUtils.byteCountToDisplaySize((long) getThroughput())).append("/s");
+        long eta = getEtaMillis();
+        if (eta >= 0) {
+            message.append(", ").append(DateUtils.formatElapsedTime(eta / 1000)).append(" left");
+        }
+        return message.toString();
+    }
+
+    private void publish() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        listener.onProgress(this);
+        handler.postDelayed(publishRunnable, PUBLISH_INTERVAL_MILLIS);
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        handler.removeCallbacks(publishRunnable);
+    }
+
+    public interface Listener {
+
+        void onProgress(TransferMetrics transferMetrics);
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import it.anyplace.sync.bep.BlockPusher;
+import it.anyplace.sync.client.SyncthingClient;
+import it.anyplace.sync.core.beans.FileBlocks;
+import it.anyplace.sync.core.beans.FileInfo;
+import it.anyplace.sync.core.utils.PathUtils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * uploads files with bounded concurrency; failed files are retried with exponential backoff, and a failure
+ * never stops the rest of the queue. Listener methods are invoked from worker threads.
+ */
+public class UploadQueue implements Closeable {
+
+    private final static int MAX_ATTEMPTS = 3;
+    private final static long RETRY_BASE_DELAY_MILLIS = 2000;
+    private final static long PROGRESS_NOTIFICATION_INTERVAL_MILLIS = 500;
+
+    private final SyncthingClient syncthingClient;
+    private final ContentResolver contentResolver;
+    private final Listener listener;
+    private final ScheduledThreadPoolExecutor executorService;
+    private final List<Upload> uploads = Lists.newArrayList();
+    private final AtomicBoolean started = new AtomicBoolean(false), completionNotified = new AtomicBoolean(false);
+    private volatile boolean cancelled = false;
+    private final TransferMetrics transferMetrics = new TransferMetrics(0, null);
+    private long lastProgressNotification = 0;
+
+    public UploadQueue(SyncthingClient syncthingClient, ContentResolver contentResolver, int concurrency, Listener listener) {
+        checkArgument(concurrency > 0);
+        this.syncthingClient = syncthingClient;
+        this.contentResolver = contentResolver;
+        this.listener = listener;
+        this.executorService = new ScheduledThreadPoolExecutor(concurrency);
+    }
+
+    /**
+     * default concurrency: one upload per core, halved (min 1) on metered networks
+     */
+    public static int getDefaultConcurrency(Context context) {
+        int concurrency = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager != null && connectivityManager.isActiveNetworkMetered()) {
+            concurrency = Math.max(1, concurrency / 2);
+        }
+        return concurrency;
+    }
+
+    /**
+     * add a file to the queue; size is the expected content size, or -1 if unknown
+     */
+    public Upload add(Uri uri, String fileName, long size, String folder, String dir) {
+        checkArgument(!started.get(), "upload queue already started");
+        Upload upload = new Upload(uri, fileName, folder, PathUtils.buildPath(dir, fileName));
+        upload.size = Math.max(size, 0);
+        synchronized (uploads) {
+            uploads.add(upload);
+        }
+        return upload;
+    }
+
+    public void start() {
+        checkArgument(!started.getAndSet(true), "upload queue already started");
+        if (isCompleted()) {
+            listener.onQueueCompleted(this);
+            return;
+        }
+        for (final Upload upload : getUploads()) {
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    runUpload(upload);
+                }
+            });
+        }
+    }
+
+    private void runUpload(final Upload upload) {
+        if (cancelled) {
+            return;
+        }
+        upload.attempts++;
+        upload.status = UploadStatus.RUNNING;
+        Log.i("UploadQueue", "upload of file " + upload.fileName + " to folder " + upload.folder + ":" + upload.path + ", attempt " + upload.attempts);
+        if (upload.attempts == 1 && isUnchangedOnRemote(upload)) {
+            upload.unchanged = true;
+            upload.sentBytes = upload.size;
+            upload.status = UploadStatus.COMPLETED;
+            Log.i("UploadQueue", "file " + upload.fileName + " unchanged on folder " + upload.folder + ":" + upload.path + ", skip upload");
+            listener.onFileCompleted(upload);
+        } else {
+            pushFile(upload);
+        }
+        if (cancelled) {
+            return;
+        }
+        notifyProgress(true);
+        if (isCompleted() && !completionNotified.getAndSet(true)) {
+            listener.onQueueCompleted(this);
+        }
+    }
+
+    private void pushFile(final Upload upload) {
+        try (BlockPusher.FileUploadObserver observer = syncthingClient.pushFile(contentResolver.openInputStream(upload.uri), upload.folder, upload.path)) {
+            upload.size = observer.getDataSource().getSize();
+            while (!observer.isCompleted() && !cancelled) {
+                observer.waitForProgressUpdate();
+                upload.sentBytes = (long) (observer.getProgress() * upload.size);
+                notifyProgress(false);
+            }
+            if (cancelled) {
+                return;
+            }
+            upload.sentBytes = upload.size;
+            upload.status = UploadStatus.COMPLETED;
+            Log.i("UploadQueue", "uploaded file " + upload.fileName + " to folder " + upload.folder + ":" + upload.path);
+            listener.onFileCompleted(upload);
+        } catch (Exception ex) {
+            if (cancelled) {
+                return;
+            }
+            upload.sentBytes = 0;
+            upload.error = ex;
+            if (upload.attempts < MAX_ATTEMPTS) {
+                long delay = RETRY_BASE_DELAY_MILLIS << (upload.attempts - 1);
+                Log.w("UploadQueue", "error uploading file " + upload.fileName + ", retry in " + delay + "ms", ex);
+                upload.status = UploadStatus.WAITING_RETRY;
+                executorService.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        runUpload(upload);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } else {
+                Log.e("UploadQueue", "error uploading file " + upload.fileName + ", giving up", ex);
+                upload.status = UploadStatus.FAILED;
+                listener.onFileFailed(upload, ex);
+            }
+        }
+    }
+
+    /**
+     * return true if the remote file has the same size and the same block hashes as the local content, so
+     * that pushing it again would not change it. Size is checked first, so that a changed file is hashed
+     * only when sizes match, and only up to the first changed block.
+     */
+    private boolean isUnchangedOnRemote(Upload upload) {
+        if (upload.size <= 0) {
+            return false;
+        }
+        Pair<FileInfo, FileBlocks> remoteFile = syncthingClient.getIndexHandler().getFileInfoAndBlocksByPath(upload.folder, upload.path);
+        if (remoteFile == null || !remoteFile.getLeft().isFile() || remoteFile.getLeft().isDeleted()
+                || remoteFile.getLeft().getSize() != upload.size) {
+            return false;
+        }
+        try (InputStream inputStream = contentResolver.openInputStream(upload.uri)) {
+            return BlockHasher.matchesBlocks(inputStream, remoteFile.getRight().getBlocks());
+        } catch (Exception ex) {
+            Log.w("UploadQueue", "unable to compare file " + upload.fileName + " with remote copy", ex);
+            return false;
+        }
+    }
+
+    private void notifyProgress(boolean force) {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (!force && now - lastProgressNotification < PROGRESS_NOTIFICATION_INTERVAL_MILLIS) {
+                return;
+            }
+            long totalBytes = 0;
+            for (Upload upload : getUploads()) {
+                totalBytes += upload.size;
+            }
+            transferMetrics.setTotalBytes(totalBytes);
+            transferMetrics.update(getSentBytes());
+            lastProgressNotification = now;
+        }
+        listener.onProgress(this);
+    }
+
+    public List<Upload> getUploads() {
+        synchronized (uploads) {
+            return ImmutableList.copyOf(uploads);
+        }
+    }
+
+    public boolean isCompleted() {
+        for (Upload upload : getUploads()) {
+            if (!upload.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getSentBytes() {
+        long sentBytes = 0;
+        for (Upload upload : getUploads()) {
+            sentBytes += upload.sentBytes;
+        }
+        return sentBytes;
+    }
+
+    public TransferMetrics getTransferMetrics() {
+        return transferMetrics;
+    }
+
+    public String getProgressMessage() {
+        int completed = 0, failed = 0, unchanged = 0;
+        List<String> running = Lists.newArrayList();
+        for (Upload upload : getUploads()) {
+            switch (upload.status) {
+                case COMPLETED:
+                    completed++;
+                    if (upload.unchanged) {
+                        unchanged++;
+                    }
+                    break;
+                case FAILED:
+                    failed++;
+                    break;
+                case RUNNING:
+                    running.add(upload.fileName + (upload.size > 0 ? " " + (upload.sentBytes * 100 / upload.size) + "%" : ""));
+                    break;
+            }
+        }
+        StringBuilder message = new StringBuilder("uploaded " + completed + "/" + getUploads().size() + " files");
+        if (unchanged > 0) {
+            message.append(", ").append(unchanged).append(" unchanged");
+        }
+        if (failed > 0) {
+            message.append(", ").append(failed).append(" failed");
+        }
+        message.append(", ").append(transferMetrics.getProgressMessage());
+        for (String line : running) {
+            message.append("\n").append(line);
+        }
+        return message.toString();
+    }
+
+    @Override
+    public void close() {
+        cancelled = true;
+        executorService.shutdownNow();
+        transferMetrics.close();
+    }
+
+    public enum UploadStatus {
+        QUEUED, RUNNING, WAITING_RETRY, COMPLETED, FAILED
+    }
+
+    public static class Upload {
+        private final Uri uri;
+        private final String fileName, folder, path;
+        private volatile UploadStatus status = UploadStatus.QUEUED;
+        private volatile long size = 0, sentBytes = 0;
+        private volatile int attempts = 0;
+        private volatile boolean unchanged = false;
+        private volatile Exception error;
+
+        private Upload(Uri uri, String fileName, String folder, String path) {
+            this.uri = uri;
+            this.fileName = fileName;
+            this.folder = folder;
+            this.path = path;
+        }
+
+        public Uri getUri() {
+            return uri;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getFolder() {
+            return folder;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public UploadStatus getStatus() {
+            return status;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getSentBytes() {
+            return sentBytes;
+        }
+
+        /**
+         * true if the file was not pushed, since the remote copy already had the same content
+         */
+        public boolean isUnchanged() {
+            return unchanged;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isDone() {
+            return status == UploadStatus.COMPLETED || status == UploadStatus.FAILED;
+        }
+    }
+
+    public interface Listener {
+
+        void onProgress(UploadQueue uploadQueue);
+
+        void onFileCompleted(Upload upload);
+
+        void onFileFailed(Upload upload, Exception ex);
+
+        void onQueueCompleted(UploadQueue uploadQueue);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * logs startup phases with the time elapsed since startup (first use of this class in the process), and
+ * the time to first list, ie until the first folder or file list is displayed.
+ */
+public class StartupTimer {
+
+    private final static long startTime = SystemClock.elapsedRealtime();
+    private static boolean firstListShown = false;
+
+    public static void phase(String phase) {
+        Log.i("StartupTimer", "startup phase '" + phase + "' at " + getElapsedMillis() + "ms");
+    }
+
+    /**
+     * record time to first list; only the first call per process is logged
+     */
+    public static synchronized void firstListShown(String source) {
+        if (!firstListShown) {
+            firstListShown = true;
+            Log.i("StartupTimer", "time to first list = " + getElapsedMillis() + "ms (" + source + ")");
+        }
+    }
+
+    private static long getElapsedMillis() {
+        return SystemClock.elapsedRealtime() - startTime;
+    }
+}
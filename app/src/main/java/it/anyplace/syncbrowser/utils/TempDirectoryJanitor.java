@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.utils;
+
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * keeps the temp directory clean without blocking startup: the directory is moved aside with a rename
+ * (constant time) before the client starts, and the old content is deleted later, in background. If the
+ * rename fails, stale content (older than startup) is deleted in place, in background.
+ */
+public class TempDirectoryJanitor {
+
+    private final static String TRASH_SUFFIX = ".trash-";
+
+    private final File tempDirectory;
+    private long staleBefore = 0;
+
+    public TempDirectoryJanitor(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * move current temp content aside, leaving an empty temp directory
+     */
+    public void moveAside() throws IOException {
+        String[] names = tempDirectory.list();
+        if (names != null && names.length > 0) {
+            File trashDirectory = new File(tempDirectory.getParentFile(), tempDirectory.getName() + TRASH_SUFFIX + System.currentTimeMillis());
+            if (tempDirectory.renameTo(trashDirectory)) {
+                Log.d("TempDirectoryJanitor", "moved temp content aside to " + trashDirectory);
+            } else {
+                staleBefore = System.currentTimeMillis();
+                Log.w("TempDirectoryJanitor", "unable to move temp dir " + tempDirectory + " aside, will delete stale content in place");
+            }
+        }
+        FileUtils.forceMkdir(tempDirectory);
+    }
+
+    /**
+     * delete content moved aside (from this or previous runs), and stale temp content that could not be
+     * moved aside. Blocking, do not call from ui thread.
+     */
+    public void cleanup() {
+        long startTime = System.currentTimeMillis();
+        int deletedDirectories = 0, deletedStaleFiles = 0;
+        File[] trashDirectories = tempDirectory.getParentFile().listFiles();
+        if (trashDirectories != null) {
+            for (File trashDirectory : trashDirectories) {
+                if (trashDirectory.isDirectory() && trashDirectory.getName().startsWith(tempDirectory.getName() + TRASH_SUFFIX)) {
+                    FileUtils.deleteQuietly(trashDirectory);
+                    deletedDirectories++;
+                }
+            }
+        }
+        File[] tempFiles = staleBefore > 0 ? tempDirectory.listFiles() : null;
+        if (tempFiles != null) {
+            for (File file : tempFiles) {
+                if (file.lastModified() < staleBefore) {
+                    FileUtils.deleteQuietly(file);
+                    deletedStaleFiles++;
+                }
+            }
+        }
+        Log.i("TempDirectoryJanitor", "temp cleanup completed in " + (System.currentTimeMillis() - startTime) + "ms, deleted " + deletedDirectories
+                + " old temp dirs and " + deletedStaleFiles + " stale temp files");
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.browser;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+
+import com.google.common.collect.Maps;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexRefreshSchedulerTest {
+
+    private final static long MINUTE = 60 * 1000;
+
+    private final FakeSharedPreferences preferences = new FakeSharedPreferences();
+
+    private final Context context = new ContextWrapper(null) {
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            return preferences;
+        }
+
+        @Override
+        public Object getSystemService(String name) {
+            return null;
+        }
+
+        @Override
+        public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+            return null;
+        }
+    };
+
+    private IndexRefreshScheduler newScheduler(String... folders) {
+        IndexRefreshScheduler indexRefreshScheduler = new IndexRefreshScheduler(context, new IndexRefreshScheduler.Listener() {
+            @Override
+            public void onRefreshDue() {
+            }
+        });
+        indexRefreshScheduler.addFolders(Arrays.asList(folders));
+        return indexRefreshScheduler;
+    }
+
+    private static void assertNextRefreshIn(long expectedMillis, IndexRefreshScheduler indexRefreshScheduler) {
+        assertEquals(expectedMillis, indexRefreshScheduler.getNextRefreshTime() - System.currentTimeMillis(), 5000);
+    }
+
+    @Test
+    public void testNewFoldersAreDue() {
+        IndexRefreshScheduler indexRefreshScheduler = newScheduler("a", "b");
+        assertEquals(10 * MINUTE, indexRefreshScheduler.getNextRefreshTime());
+    }
+
+    @Test
+    public void testUnchangedFolderBacksOff() {
+        IndexRefreshScheduler indexRefreshScheduler = newScheduler("a");
+        indexRefreshScheduler.onRefreshCompleted(true);
+        assertNextRefreshIn(20 * MINUTE, indexRefreshScheduler);
+        indexRefreshScheduler.onRefreshCompleted(true);
+        assertNextRefreshIn(40 * MINUTE, indexRefreshScheduler);
+        for (int i = 0; i < 10; i++) {
+            indexRefreshScheduler.onRefreshCompleted(true);
+        }
+        assertNextRefreshIn(4 * 60 * MINUTE, indexRefreshScheduler);
+    }
+
+    @Test
+    public void testChangedFolderResetsInterval() {
+        IndexRefreshScheduler indexRefreshScheduler = newScheduler("a");
+        indexRefreshScheduler.onRefreshCompleted(true);
+        indexRefreshScheduler.onRefreshCompleted(true);
+        assertNextRefreshIn(40 * MINUTE, indexRefreshScheduler);
+        indexRefreshScheduler.onIndexRecords("a");
+        indexRefreshScheduler.onRefreshCompleted(true);
+        assertNextRefreshIn(10 * MINUTE, indexRefreshScheduler);
+    }
+
+    @Test
+    public void testFailedRefreshKeepsInterval() {
+        IndexRefreshScheduler indexRefreshScheduler = newScheduler("a");
+        indexRefreshScheduler.onRefreshCompleted(true);
+        indexRefreshScheduler.onRefreshCompleted(false);
+        assertNextRefreshIn(20 * MINUTE, indexRefreshScheduler);
+    }
+
+    @Test
+    public void testFirstFolderDueWins() {
+        IndexRefreshScheduler indexRefreshScheduler = newScheduler("a", "b");
+        indexRefreshScheduler.onRefreshCompleted(true);
+        indexRefreshScheduler.onIndexRecords("b");
+        indexRefreshScheduler.onRefreshCompleted(true);
+        assertNextRefreshIn(10 * MINUTE, indexRefreshScheduler);
+    }
+
+    @Test
+    public void testBrowsedFolderDoesNotBackOff() {
+        IndexRefreshScheduler indexRefreshScheduler = newScheduler("a", "b");
+        indexRefreshScheduler.setBrowsedFolder("a");
+        for (int i = 0; i < 3; i++) {
+            indexRefreshScheduler.onRefreshCompleted(true);
+        }
+        assertNextRefreshIn(10 * MINUTE, indexRefreshScheduler);
+        indexRefreshScheduler.setBrowsedFolder(null);
+        assertNextRefreshIn(80 * MINUTE, indexRefreshScheduler);
+    }
+
+    @Test
+    public void testLastRefreshIsPersisted() {
+        newScheduler("a").onRefreshCompleted(true);
+        assertNextRefreshIn(10 * MINUTE, newScheduler("a"));
+        assertEquals(10 * MINUTE, newScheduler("b").getNextRefreshTime());
+    }
+
+    private static class FakeSharedPreferences implements SharedPreferences {
+
+        private final Map<String, Object> values = Maps.newHashMap();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return Collections.unmodifiableMap(values);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return values.containsKey(key) ? (String) values.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return values.containsKey(key) ? (Set<String>) values.get(key) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return values.containsKey(key) ? (Integer) values.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return values.containsKey(key) ? (Long) values.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return values.containsKey(key) ? (Float) values.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return values.containsKey(key) ? (Boolean) values.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new Editor() {
+
+                @Override
+                public Editor putString(String key, String value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putStringSet(String key, Set<String> value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    values.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    values.remove(key);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    values.clear();
+                    return this;
+                }
+
+                @Override
+                public boolean commit() {
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                }
+            };
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.search;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import it.anyplace.sync.core.beans.FileInfo;
+import it.anyplace.sync.core.utils.FileInfoOrdering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearchIndexTest {
+
+    private final SearchIndex searchIndex = new SearchIndex();
+
+    private static FileInfo file(String path) {
+        return FileInfo.newBuilder()
+                .setFolder("folder")
+                .setPath(path)
+                .setTypeFile()
+                .setSize(1L)
+                .setLastModified(new Date(0))
+                .setHash("hash")
+                .build();
+    }
+
+    private static FileInfo deletedFile(String path) {
+        return FileInfo.newBuilder()
+                .setFolder("folder")
+                .setPath(path)
+                .setTypeFile()
+                .setSize(1L)
+                .setLastModified(new Date(0))
+                .setHash("hash")
+                .setDeleted(true)
+                .build();
+    }
+
+    private List<String> search(String query) {
+        return getPaths(searchIndex.search(query, FileInfoOrdering.ALPHA_ASC_DIR_FIRST));
+    }
+
+    private static List<String> getPaths(SearchIndex.SearchResult searchResult) {
+        List<String> paths = Lists.newArrayList();
+        for (FileEntry fileEntry : searchResult.getResults()) {
+            paths.add(fileEntry.getPath());
+        }
+        return paths;
+    }
+
+    @Test
+    public void testTrigramSearch() {
+        searchIndex.update(Arrays.asList(file("holiday.jpg"), file("docs/Birthday Party.png"), file("notes.txt")));
+        assertEquals(Arrays.asList("docs/Birthday Party.png", "holiday.jpg"), search("DAY"));
+        assertEquals(Arrays.asList("docs/Birthday Party.png"), search("party"));
+        assertTrue(search("missing").isEmpty());
+    }
+
+    @Test
+    public void testShortQuery() {
+        searchIndex.update(Arrays.asList(file("ab.txt"), file("cd.txt")));
+        assertEquals(Arrays.asList("ab.txt"), search("b"));
+        assertEquals(Arrays.asList("cd.txt"), search("cd"));
+    }
+
+    @Test
+    public void testRanking() {
+        searchIndex.update(Arrays.asList(file("myreport.pdf"), file("annual report.pdf"), file("report.pdf"), file("report")));
+        assertEquals(Arrays.asList("report", "report.pdf", "annual report.pdf", "myreport.pdf"), search("report"));
+    }
+
+    @Test
+    public void testPathSearch() {
+        searchIndex.update(Arrays.asList(file("photos/2017/img.jpg"), file("photos/img.jpg"), file("img.jpg")));
+        assertEquals(Arrays.asList("photos/2017/img.jpg"), search("2017/img"));
+        assertEquals(Arrays.asList("photos/2017/img.jpg"), search("tos/20"));
+        assertEquals(Arrays.asList("photos/2017/img.jpg"), search("Photos/2017"));
+        assertEquals(Arrays.asList("photos/img.jpg"), search("photos/img"));
+        assertEquals(Arrays.asList("photos/2017/img.jpg", "photos/img.jpg"), search("/img"));
+    }
+
+    @Test
+    public void testUpdateAndDelete() {
+        searchIndex.update(Arrays.asList(file("a/first.txt"), file("a/second.txt")));
+        assertEquals(2, searchIndex.size());
+        searchIndex.update(Arrays.asList(deletedFile("a/first.txt")));
+        assertEquals(1, searchIndex.size());
+        assertTrue(search("first").isEmpty());
+        assertEquals(Arrays.asList("a/second.txt"), search("second"));
+        searchIndex.update(Arrays.asList(file("a/second.txt")));
+        assertEquals(1, searchIndex.size());
+        assertEquals(Arrays.asList("a/second.txt"), search("second"));
+    }
+
+    @Test
+    public void testCompaction() {
+        List<FileInfo> files = Lists.newArrayList(), deletedFiles = Lists.newArrayList();
+        for (int i = 0; i < 2000; i++) {
+            files.add(file("dir/file" + i + ".txt"));
+            if (i % 4 != 0) {
+                deletedFiles.add(deletedFile("dir/file" + i + ".txt"));
+            }
+        }
+        searchIndex.update(files);
+        searchIndex.update(deletedFiles); // 1500 tombstones, compacted
+        assertEquals(500, searchIndex.size());
+        assertEquals(Arrays.asList("dir/file1000.txt"), search("file1000.txt"));
+        assertTrue(search("file1001.txt").isEmpty());
+        assertEquals(500, search("file").size());
+        searchIndex.update(Arrays.asList(file("dir/file1001.txt"), deletedFile("dir/file1000.txt")));
+        assertEquals(Arrays.asList("dir/file1001.txt"), search("file1001.txt"));
+        assertTrue(search("file1000.txt").isEmpty());
+        assertEquals(500, searchIndex.size());
+    }
+
+    @Test
+    public void testRefinePreviousResult() {
+        searchIndex.update(Arrays.asList(file("holiday.jpg"), file("holland.jpg"), file("notes.txt")));
+        SearchIndex.SearchResult previous = searchIndex.search("hol", FileInfoOrdering.ALPHA_ASC_DIR_FIRST);
+        assertEquals(2, previous.getResultCount());
+        SearchIndex.SearchResult refined = searchIndex.search("holi", FileInfoOrdering.ALPHA_ASC_DIR_FIRST, previous, null);
+        assertEquals(Arrays.asList("holiday.jpg"), getPaths(refined));
+    }
+
+    @Test
+    public void testLoaderDoesNotOverrideUpdates() {
+        searchIndex.update(Arrays.asList(deletedFile("removed.txt"), file("renamed.txt")));
+        searchIndex.load(Arrays.asList(file("removed.txt"), file("renamed.txt"), file("other.txt")));
+        assertTrue(search("removed").isEmpty());
+        assertEquals(Arrays.asList("other.txt"), search("other"));
+        assertFalse(searchIndex.isComplete());
+        searchIndex.setComplete(true);
+        assertTrue(searchIndex.isComplete());
+        searchIndex.clear();
+        assertFalse(searchIndex.isComplete());
+        assertEquals(0, searchIndex.size());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DownloadFileWriterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static byte[] randomData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testWriteFromStream() throws IOException {
+        byte[] data = randomData(3 * 1024 * 1024 + 17);
+        File outputFile = new File(temporaryFolder.getRoot(), "dir/file.bin");
+        DownloadFileWriter.writeToFile(new ByteArrayInputStream(data), outputFile, data.length);
+        assertArrayEquals(data, FileUtils.readFileToByteArray(outputFile));
+        assertFalse(DownloadFileWriter.getPartFile(outputFile).exists());
+    }
+
+    @Test
+    public void testWriteFromFile() throws IOException {
+        byte[] data = randomData(1024 * 1024 + 5);
+        File inputFile = temporaryFolder.newFile("input.bin");
+        FileUtils.writeByteArrayToFile(inputFile, data);
+        File outputFile = new File(temporaryFolder.getRoot(), "output.bin");
+        try (InputStream inputStream = new FileInputStream(inputFile)) {
+            DownloadFileWriter.writeToFile(inputStream, outputFile, data.length);
+        }
+        assertArrayEquals(data, FileUtils.readFileToByteArray(outputFile));
+    }
+
+    @Test
+    public void testWriteEmpty() throws IOException {
+        File outputFile = new File(temporaryFolder.getRoot(), "empty.bin");
+        DownloadFileWriter.writeToFile(new ByteArrayInputStream(new byte[0]), outputFile, 0);
+        assertTrue(outputFile.isFile());
+        assertTrue(outputFile.length() == 0);
+    }
+
+    @Test
+    public void testTruncatedStreamFails() throws IOException {
+        byte[] data = randomData(1000);
+        File outputFile = new File(temporaryFolder.getRoot(), "truncated.bin");
+        try {
+            DownloadFileWriter.writeToFile(new ByteArrayInputStream(data), outputFile, data.length + 1);
+            fail("size mismatch not detected");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertFalse(outputFile.exists());
+        assertFalse(DownloadFileWriter.getPartFile(outputFile).exists());
+    }
+
+    @Test
+    public void testLongerStreamFails() throws IOException {
+        byte[] data = randomData(1000);
+        File outputFile = new File(temporaryFolder.getRoot(), "longer.bin");
+        try {
+            DownloadFileWriter.writeToFile(new ByteArrayInputStream(data), outputFile, data.length - 1);
+            fail("size mismatch not detected");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertFalse(outputFile.exists());
+        assertFalse(DownloadFileWriter.getPartFile(outputFile).exists());
+    }
+
+    @Test
+    public void testFailureKeepsPreviousFile() throws IOException {
+        byte[] data = randomData(100);
+        File outputFile = new File(temporaryFolder.getRoot(), "previous.bin");
+        FileUtils.writeByteArrayToFile(outputFile, data);
+        try {
+            DownloadFileWriter.writeToFile(new ByteArrayInputStream(randomData(10)), outputFile, 20);
+            fail("size mismatch not detected");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertArrayEquals(data, FileUtils.readFileToByteArray(outputFile));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import it.anyplace.sync.core.beans.FileInfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileCacheTest {
+
+    private final static long MAX_SIZE = 100;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+    private FileCache fileCache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = temporaryFolder.newFolder("cache");
+        fileCache = new FileCache(directory, MAX_SIZE);
+    }
+
+    private static FileInfo newFileInfo(String path, long size, String hash) {
+        return FileInfo.newBuilder()
+                .setFolder("folder")
+                .setPath(path)
+                .setTypeFile()
+                .setSize(size)
+                .setLastModified(new Date(0))
+                .setHash(hash)
+                .build();
+    }
+
+    private static FileInfo newFileInfo(String path, long size) {
+        return newFileInfo(path, size, "hash");
+    }
+
+    /**
+     * write content where the cache expects it, as a pull would, and register it
+     */
+    private boolean pull(FileInfo fileInfo) throws IOException {
+        File file = fileCache.getFile(fileInfo);
+        FileUtils.writeByteArrayToFile(file, new byte[fileInfo.getSize().intValue()]);
+        return fileCache.put(fileInfo, file);
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        FileInfo fileInfo = newFileInfo("dir/file.txt", 10);
+        assertNull(fileCache.get(fileInfo));
+        assertTrue(pull(fileInfo));
+        File file = fileCache.get(fileInfo);
+        assertNotNull(file);
+        assertEquals("file.txt", file.getName());
+        assertEquals(10, file.length());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        FileInfo a = newFileInfo("a", 40), b = newFileInfo("b", 40), c = newFileInfo("c", 40);
+        pull(a);
+        pull(b);
+        assertNotNull(fileCache.get(a)); // b is now the least recently used
+        pull(c);
+        assertNull(fileCache.get(b));
+        assertFalse(fileCache.getFile(b).exists());
+        assertNotNull(fileCache.get(a));
+        assertNotNull(fileCache.get(c));
+    }
+
+    @Test
+    public void testPeekDoesNotChangeEvictionOrder() throws IOException {
+        FileInfo a = newFileInfo("a", 40), b = newFileInfo("b", 40), c = newFileInfo("c", 40);
+        pull(a);
+        pull(b);
+        assertNotNull(fileCache.peek(a));
+        pull(c);
+        assertNull(fileCache.peek(a));
+        assertNotNull(fileCache.peek(b));
+        assertNotNull(fileCache.peek(c));
+    }
+
+    @Test
+    public void testRefusesFileLargerThanCache() throws IOException {
+        FileInfo small = newFileInfo("small", 40), large = newFileInfo("large", MAX_SIZE + 1);
+        pull(small);
+        assertFalse(fileCache.accepts(large));
+        assertFalse(pull(large));
+        assertFalse(fileCache.getFile(large).exists());
+        assertNull(fileCache.get(large));
+        assertNotNull(fileCache.get(small)); // not evicted to make room
+    }
+
+    @Test
+    public void testStaleVersionIsNotReturned() throws IOException {
+        pull(newFileInfo("file", 10, "hash"));
+        assertNull(fileCache.get(newFileInfo("file", 10, "other")));
+        assertNull(fileCache.get(newFileInfo("file", 10, "hash"))); // stale entry has been dropped
+    }
+
+    @Test
+    public void testIndexIsPersisted() throws IOException {
+        FileInfo a = newFileInfo("a", 40), b = newFileInfo("b", 40), c = newFileInfo("c", 40);
+        pull(a);
+        pull(b);
+        fileCache = new FileCache(directory, MAX_SIZE);
+        assertNotNull(fileCache.peek(a));
+        assertNotNull(fileCache.peek(b));
+        pull(c);
+        assertNull(fileCache.peek(a));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 Davide Imbriaco
+ *
+ * This Java file is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.anyplace.syncbrowser.transfer;
+
+import com.google.common.base.Ticker;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransferMetricsTest {
+
+    private static class FakeTicker extends Ticker {
+
+        private long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        private void setMillis(long millis) {
+            nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    /**
+     * 1000 bytes every 250ms, for 20s
+     */
+    private TransferMetrics steadyTransfer(long totalBytes) {
+        TransferMetrics transferMetrics = new TransferMetrics(totalBytes, null, ticker);
+        for (int i = 0; i <= 80; i++) {
+            ticker.setMillis(i * 250);
+            transferMetrics.update(i * 1000);
+        }
+        return transferMetrics;
+    }
+
+    @Test
+    public void testThroughputOverWindow() {
+        TransferMetrics transferMetrics = steadyTransfer(120000);
+        assertEquals(4000, transferMetrics.getThroughput(), 0.001);
+        assertEquals(10000, transferMetrics.getEtaMillis());
+    }
+
+    @Test
+    public void testThroughputOnlyCountsWindow() {
+        TransferMetrics transferMetrics = new TransferMetrics(0, null, ticker);
+        ticker.setMillis(0);
+        transferMetrics.update(0);
+        ticker.setMillis(1000);
+        transferMetrics.update(1000000); // burst, out of window later
+        for (int i = 1; i <= 48; i++) {
+            ticker.setMillis(1000 + i * 250);
+            transferMetrics.update(1000000 + i * 250);
+        }
+        assertEquals(1000, transferMetrics.getThroughput(), 0.001);
+    }
+
+    @Test
+    public void testThroughputDecaysWhenStalled() {
+        TransferMetrics transferMetrics = steadyTransfer(120000);
+        ticker.setMillis(25000);
+        assertEquals(2000, transferMetrics.getThroughput(), 0.001); // 20000 bytes since 15s, over 10s
+        ticker.setMillis(31000);
+        assertEquals(0, transferMetrics.getThroughput(), 0.001);
+        assertEquals(-1, transferMetrics.getEtaMillis());
+    }
+
+    @Test
+    public void testProgressPermille() {
+        TransferMetrics transferMetrics = new TransferMetrics(2000, null, ticker);
+        assertEquals(0, transferMetrics.getProgressPermille());
+        transferMetrics.update(500);
+        assertEquals(250, transferMetrics.getProgressPermille());
+        transferMetrics.update(2500);
+        assertEquals(1000, transferMetrics.getProgressPermille());
+        transferMetrics.setTotalBytes(0);
+        assertEquals(0, transferMetrics.getProgressPermille());
+        assertEquals(-1, transferMetrics.getEtaMillis());
+    }
+
+    @Test
+    public void testLargeFile() {
+        long gigabyte = 1024L * 1024 * 1024;
+        TransferMetrics transferMetrics = new TransferMetrics(5 * gigabyte, null, ticker);
+        transferMetrics.update(4 * gigabyte);
+        assertEquals(4 * gigabyte, transferMetrics.getTransferredBytes());
+        assertEquals(800, transferMetrics.getProgressPermille());
+    }
+}